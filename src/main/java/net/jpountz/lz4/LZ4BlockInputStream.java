@@ -46,8 +46,8 @@ public class LZ4BlockInputStream extends FilterInputStream {
   private final LZ4FastDecompressor decompressor;
   private final Checksum checksum;
   private final boolean stopOnEmptyBlock;
-  private byte[] buffer;
-  private byte[] compressedBuffer;
+  private final byte[] header;
+  private byte[] buffer; // also holds compressed blocks, which are decompressed in place
   private int originalLen;
   private int o;
   private boolean finished;
@@ -68,8 +68,8 @@ public class LZ4BlockInputStream extends FilterInputStream {
     this.decompressor = decompressor;
     this.checksum = checksum;
     this.stopOnEmptyBlock = stopOnEmptyBlock;
+    this.header = new byte[HEADER_LENGTH];
     this.buffer = new byte[0];
-    this.compressedBuffer = new byte[HEADER_LENGTH];
     o = originalLen = 0;
     finished = false;
   }
@@ -149,22 +149,35 @@ public class LZ4BlockInputStream extends FilterInputStream {
     return buffer[o++] & 0xFF;
   }
 
+  /**
+   * Reads up to <code>len</code> bytes of decompressed data. Blocks are read
+   * until <code>len</code> bytes are read, as long as the next block can be
+   * read without blocking, and blocks which fit in the remaining part of
+   * <code>b</code> are decompressed there directly.
+   */
   @Override
   public int read(byte[] b, int off, int len) throws IOException {
     SafeUtils.checkRange(b, off, len);
     if (finished) {
       return -1;
     }
-    if (o == originalLen) {
-      refill();
-    }
-    if (finished) {
-      return -1;
+    int read = 0;
+    while (read < len) {
+      if (o < originalLen) {
+        final int n = Math.min(len - read, originalLen - o);
+        System.arraycopy(buffer, o, b, off + read, n);
+        o += n;
+        read += n;
+      } else if (read > 0 && in.available() <= 0) {
+        break;
+      } else {
+        read += refill(b, off + read, len - read);
+        if (finished) {
+          break;
+        }
+      }
     }
-    len = Math.min(len, originalLen - o);
-    System.arraycopy(buffer, o, b, off, len);
-    o += len;
-    return len;
+    return read == 0 && finished ? -1 : read;
   }
 
   @Override
@@ -189,28 +202,39 @@ public class LZ4BlockInputStream extends FilterInputStream {
   }
 
   private void refill() throws IOException {
-    if (!tryReadFully(compressedBuffer, HEADER_LENGTH)) {
+    refill(null, 0, 0);
+  }
+
+  /**
+   * Same as {@link #refill()}, except that a block which fits in
+   * <code>dest[destOff:destOff+destLen]</code> is decompressed there directly,
+   * instead of into {@link #buffer}.
+   *
+   * @return the number of bytes which have been decompressed into dest
+   */
+  private int refill(byte[] dest, int destOff, int destLen) throws IOException {
+    if (!tryReadFully(header, 0, HEADER_LENGTH)) {
       if (!stopOnEmptyBlock) {
         finished = true;
       } else {
         throw new EOFException("Stream ended prematurely");
       }
-      return;
+      return 0;
     }
     for (int i = 0; i < MAGIC_LENGTH; ++i) {
-      if (compressedBuffer[i] != MAGIC[i]) {
+      if (header[i] != MAGIC[i]) {
         throw new IOException("Stream is corrupted");
       }
     }
-    final int token = compressedBuffer[MAGIC_LENGTH] & 0xFF;
+    final int token = header[MAGIC_LENGTH] & 0xFF;
     final int compressionMethod = token & 0xF0;
     final int compressionLevel = COMPRESSION_LEVEL_BASE + (token & 0x0F);
     if (compressionMethod != COMPRESSION_METHOD_RAW && compressionMethod != COMPRESSION_METHOD_LZ4) {
       throw new IOException("Stream is corrupted");
     }
-    final int compressedLen = SafeUtils.readIntLE(compressedBuffer, MAGIC_LENGTH + 1);
-    originalLen = SafeUtils.readIntLE(compressedBuffer, MAGIC_LENGTH + 5);
-    final int check = SafeUtils.readIntLE(compressedBuffer, MAGIC_LENGTH + 9);
+    final int compressedLen = SafeUtils.readIntLE(header, MAGIC_LENGTH + 1);
+    originalLen = SafeUtils.readIntLE(header, MAGIC_LENGTH + 5);
+    final int check = SafeUtils.readIntLE(header, MAGIC_LENGTH + 9);
     assert HEADER_LENGTH == MAGIC_LENGTH + 13;
     if (originalLen > 1 << compressionLevel
         || originalLen < 0
@@ -225,26 +249,36 @@ public class LZ4BlockInputStream extends FilterInputStream {
         throw new IOException("Stream is corrupted");
       }
       if (!stopOnEmptyBlock) {
-        refill();
+        return refill(dest, destOff, destLen);
       } else {
         finished = true;
       }
-      return;
-    }
-    if (buffer.length < originalLen) {
-      buffer = new byte[Math.max(originalLen, buffer.length * 3 / 2)];
+      return 0;
     }
+    final boolean direct = dest != null && originalLen <= destLen;
+    final int targetOff = direct ? destOff : 0;
     switch (compressionMethod) {
     case COMPRESSION_METHOD_RAW:
-      readFully(buffer, originalLen);
+      if (!direct) {
+        ensureCapacity(originalLen);
+      }
+      readFully(direct ? dest : buffer, targetOff, originalLen);
       break;
     case COMPRESSION_METHOD_LZ4:
-      if (compressedBuffer.length < compressedLen) {
-        compressedBuffer = new byte[Math.max(compressedLen, compressedBuffer.length * 3 / 2)];
-      }
-      readFully(compressedBuffer, compressedLen);
       try {
-        final int compressedLen2 = decompressor.decompress(compressedBuffer, 0, buffer, 0, originalLen);
+        final int compressedLen2;
+        if (direct) {
+          ensureCapacity(compressedLen);
+          readFully(buffer, 0, compressedLen);
+          compressedLen2 = decompressor.decompress(buffer, 0, dest, destOff, originalLen);
+        } else {
+          // the compressed data is read at the end of the in-place range of the
+          // buffer and decompressed to its start
+          final int inPlaceLen = Math.max(originalLen + LZ4SafeDecompressor.inPlaceMargin(compressedLen), compressedLen);
+          ensureCapacity(inPlaceLen);
+          readFully(buffer, inPlaceLen - compressedLen, compressedLen);
+          compressedLen2 = decompressor.decompressInPlace(buffer, 0, inPlaceLen, compressedLen, originalLen);
+        }
         if (compressedLen != compressedLen2) {
           throw new IOException("Stream is corrupted");
         }
@@ -256,19 +290,31 @@ public class LZ4BlockInputStream extends FilterInputStream {
       throw new AssertionError();
     }
     checksum.reset();
-    checksum.update(buffer, 0, originalLen);
+    checksum.update(direct ? dest : buffer, targetOff, originalLen);
     if ((int) checksum.getValue() != check) {
       throw new IOException("Stream is corrupted");
     }
+    if (direct) {
+      // nothing is left in the buffer
+      o = originalLen;
+      return originalLen;
+    }
     o = 0;
+    return 0;
+  }
+
+  private void ensureCapacity(int len) {
+    if (buffer.length < len) {
+      buffer = new byte[Math.max(len, buffer.length * 3 / 2)];
+    }
   }
 
   // Like readFully(), except it signals incomplete reads by returning
   // false instead of throwing EOFException.
-  private boolean tryReadFully(byte[] b, int len) throws IOException {
+  private boolean tryReadFully(byte[] b, int off, int len) throws IOException {
     int read = 0;
     while (read < len) {
-      final int r = in.read(b, read, len - read);
+      final int r = in.read(b, off + read, len - read);
       if (r < 0) {
         return false;
       }
@@ -278,8 +324,8 @@ public class LZ4BlockInputStream extends FilterInputStream {
     return true;
   }
 
-  private void readFully(byte[] b, int len) throws IOException {
-    if (!tryReadFully(b, len)) {
+  private void readFully(byte[] b, int off, int len) throws IOException {
+    if (!tryReadFully(b, off, len)) {
       throw new EOFException("Stream ended prematurely");
     }
   }
@@ -18,21 +18,30 @@ package net.jpountz.lz4;
 
 import static net.jpountz.lz4.LZ4Constants.COPY_LENGTH;
 import static net.jpountz.lz4.LZ4Constants.LAST_LITERALS;
+import static net.jpountz.lz4.LZ4Constants.MIN_MATCH;
 import static net.jpountz.lz4.LZ4Constants.ML_BITS;
 import static net.jpountz.lz4.LZ4Constants.ML_MASK;
 import static net.jpountz.lz4.LZ4Constants.RUN_MASK;
 import static net.jpountz.util.ByteBufferUtils.readByte;
 import static net.jpountz.util.ByteBufferUtils.readInt;
 import static net.jpountz.util.ByteBufferUtils.readLong;
+import static net.jpountz.util.ByteBufferUtils.readShortLE;
 import static net.jpountz.util.ByteBufferUtils.writeByte;
 import static net.jpountz.util.ByteBufferUtils.writeInt;
 import static net.jpountz.util.ByteBufferUtils.writeLong;
+import static net.jpountz.util.ByteBufferUtils.writeShortLE;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 
+import net.jpountz.util.SafeUtils;
+
 enum LZ4ByteBufferUtils {
   ;
+
+  // below this length, copying 8 bytes at a time is faster than a bulk copy
+  // which needs to duplicate both buffers
+  private static final int BULK_COPY_THRESHOLD = 64;
   static int hash(ByteBuffer buf, int i) {
     return LZ4Utils.hash(readInt(buf, i));
   }
@@ -46,12 +55,20 @@ enum LZ4ByteBufferUtils {
   }
 
   static void safeIncrementalCopy(ByteBuffer dest, int matchOff, int dOff, int matchLen) {
+    if (dOff - matchOff >= matchLen) {
+      safeArraycopy(dest, matchOff, dest, dOff, matchLen);
+      return;
+    }
     for (int i = 0; i < matchLen; ++i) {
       dest.put(dOff + i, dest.get(matchOff + i));
     }
   }
 
   static void wildIncrementalCopy(ByteBuffer dest, int matchOff, int dOff, int matchCopyEnd) {
+    if (dOff - matchOff >= matchCopyEnd - dOff && matchCopyEnd - dOff > BULK_COPY_THRESHOLD) {
+      bulkCopy(dest, matchOff, dest, dOff, matchCopyEnd - dOff);
+      return;
+    }
     if (dOff - matchOff < 4) {
       for (int i = 0; i < 4; ++i) {
         writeByte(dest, dOff+i, readByte(dest, matchOff+i));
@@ -122,21 +139,141 @@ enum LZ4ByteBufferUtils {
 
   static int commonBytesBackward(ByteBuffer b, int o1, int o2, int l1, int l2) {
     int count = 0;
-    while (o1 > l1 && o2 > l2 && b.get(--o1) == b.get(--o2)) {
+    int len = Math.min(o1 - l1, o2 - l2);
+    while (len >= 8) {
+      final long diff = readLong(b, o1 - 8) ^ readLong(b, o2 - 8);
+      if (diff != 0) {
+        // the byte right before o1 is the most significant one in little-endian order
+        final int zeroBits;
+        if (b.order() == ByteOrder.BIG_ENDIAN) {
+          zeroBits = Long.numberOfTrailingZeros(diff);
+        } else {
+          zeroBits = Long.numberOfLeadingZeros(diff);
+        }
+        return count + (zeroBits >>> 3);
+      }
+      o1 -= 8;
+      o2 -= 8;
+      len -= 8;
+      count += 8;
+    }
+    while (len > 0 && b.get(--o1) == b.get(--o2)) {
+      --len;
       ++count;
     }
     return count;
   }
 
   static void safeArraycopy(ByteBuffer src, int sOff, ByteBuffer dest, int dOff, int len) {
-    for (int i = 0; i < len; ++i) {
+    if (len > BULK_COPY_THRESHOLD) {
+      bulkCopy(src, sOff, dest, dOff, len);
+      return;
+    }
+    int i = 0;
+    if (src.order() == dest.order()) {
+      for (; i <= len - 8; i += 8) {
+        dest.putLong(dOff + i, src.getLong(sOff + i));
+      }
+    }
+    for (; i < len; ++i) {
       dest.put(dOff + i, src.get(sOff + i));
     }
   }
 
+  /**
+   * Copies <code>src[sOff:sOff+len]</code> to <code>dest[dOff:dOff+len]</code>
+   * in one bulk operation, without modifying the positions and limits of
+   * <code>src</code> and <code>dest</code>. Both ranges must not overlap.
+   */
+  static void bulkCopy(ByteBuffer src, int sOff, ByteBuffer dest, int dOff, int len) {
+    checkBulkRange(src, sOff, len);
+    checkBulkRange(dest, dOff, len);
+    final ByteBuffer in = src.duplicate();
+    in.limit(sOff + len);
+    in.position(sOff);
+    final ByteBuffer out = dest.duplicate();
+    out.limit(dOff + len);
+    out.position(dOff);
+    out.put(in);
+  }
+
+  /**
+   * Copies <code>src[sOff:sOff+len]</code> to <code>dest[dOff:dOff+len]</code>
+   * without modifying the position of <code>src</code>.
+   */
+  static void copyToArray(ByteBuffer src, int sOff, byte[] dest, int dOff, int len) {
+    checkBulkRange(src, sOff, len);
+    final ByteBuffer in = src.duplicate();
+    in.position(sOff);
+    in.get(dest, dOff, len);
+  }
+
+  /**
+   * Copies <code>src[sOff:sOff+len]</code> to <code>dest[dOff:dOff+len]</code>
+   * without modifying the position of <code>dest</code>.
+   */
+  static void copyFromArray(byte[] src, int sOff, ByteBuffer dest, int dOff, int len) {
+    checkBulkRange(dest, dOff, len);
+    final ByteBuffer out = dest.duplicate();
+    out.position(dOff);
+    out.put(src, sOff, len);
+  }
+
+  /**
+   * Same as {@link #copyFromArray(byte[], int, ByteBuffer, int, int)} except
+   * that short copies are performed 8 bytes at a time in order not to
+   * duplicate <code>dest</code>, whatever its byte order.
+   */
+  static void safeArraycopy(byte[] src, int sOff, ByteBuffer dest, int dOff, int len) {
+    if (len > BULK_COPY_THRESHOLD) {
+      copyFromArray(src, sOff, dest, dOff, len);
+      return;
+    }
+    final boolean littleEndian = dest.order() == ByteOrder.LITTLE_ENDIAN;
+    int i = 0;
+    for (; i <= len - 8; i += 8) {
+      final long v = SafeUtils.readLongLE(src, sOff + i);
+      dest.putLong(dOff + i, littleEndian ? v : Long.reverseBytes(v));
+    }
+    for (; i < len; ++i) {
+      dest.put(dOff + i, src[sOff + i]);
+    }
+  }
+
+  /**
+   * Same as {@link #copyToArray(ByteBuffer, int, byte[], int, int)} except
+   * that short copies are performed 8 bytes at a time in order not to
+   * duplicate <code>src</code>, whatever its byte order.
+   */
+  static void safeArraycopy(ByteBuffer src, int sOff, byte[] dest, int dOff, int len) {
+    if (len > BULK_COPY_THRESHOLD) {
+      copyToArray(src, sOff, dest, dOff, len);
+      return;
+    }
+    final boolean littleEndian = src.order() == ByteOrder.LITTLE_ENDIAN;
+    int i = 0;
+    for (; i <= len - 8; i += 8) {
+      final long v = src.getLong(sOff + i);
+      SafeUtils.writeLongLE(dest, dOff + i, littleEndian ? v : Long.reverseBytes(v));
+    }
+    for (; i < len; ++i) {
+      dest[dOff + i] = src.get(sOff + i);
+    }
+  }
+
+  private static void checkBulkRange(ByteBuffer buf, int off, int len) {
+    if (off < 0 || len < 0 || off > buf.limit() - len) {
+      throw new IndexOutOfBoundsException();
+    }
+  }
+
   static void wildArraycopy(ByteBuffer src, int sOff, ByteBuffer dest, int dOff, int len) {
     assert src.order().equals(dest.order());
     try {
+      if (len > BULK_COPY_THRESHOLD) {
+        bulkCopy(src, sOff, dest, dOff, len);
+        return;
+      }
       for (int i = 0; i < len; i += 8) {
         dest.putLong(dOff + i, src.getLong(sOff + i));
       }
@@ -167,8 +304,8 @@ enum LZ4ByteBufferUtils {
 
     // encode offset
     final int matchDec = matchOff - matchRef;
-    dest.put(dOff++, (byte) matchDec);
-    dest.put(dOff++, (byte) (matchDec >>> 8));
+    writeShortLE(dest, dOff, matchDec);
+    dOff += 2;
 
     // encode match len
     matchLen -= 4;
@@ -207,6 +344,138 @@ enum LZ4ByteBufferUtils {
     return dOff;
   }
 
+  /**
+   * Same as {@link #encodeSequence(ByteBuffer, int, int, int, int, ByteBuffer, int, int)}
+   * for a heap source and a direct destination.
+   */
+  static int encodeSequence(byte[] src, int anchor, int matchOff, int matchRef, int matchLen, ByteBuffer dest, int dOff, int destEnd) {
+    final int runLen = matchOff - anchor;
+    final int tokenOff = dOff++;
+
+    if (dOff + runLen + (2 + 1 + LAST_LITERALS) + (runLen >>> 8) > destEnd) {
+      throw new LZ4Exception("maxDestLen is too small");
+    }
+
+    int token;
+    if (runLen >= RUN_MASK) {
+      token = (byte) (RUN_MASK << ML_BITS);
+      dOff = writeLen(runLen - RUN_MASK, dest, dOff);
+    } else {
+      token = runLen << ML_BITS;
+    }
+
+    // copy literals
+    safeArraycopy(src, anchor, dest, dOff, runLen);
+    dOff += runLen;
+
+    // encode offset
+    final int matchDec = matchOff - matchRef;
+    writeShortLE(dest, dOff, matchDec);
+    dOff += 2;
+
+    // encode match len
+    matchLen -= 4;
+    if (dOff + (1 + LAST_LITERALS) + (matchLen >>> 8) > destEnd) {
+      throw new LZ4Exception("maxDestLen is too small");
+    }
+    if (matchLen >= ML_MASK) {
+      token |= ML_MASK;
+      dOff = writeLen(matchLen - RUN_MASK, dest, dOff);
+    } else {
+      token |= matchLen;
+    }
+
+    dest.put(tokenOff, (byte) token);
+
+    return dOff;
+  }
+
+  /**
+   * Same as {@link #encodeSequence(ByteBuffer, int, int, int, int, ByteBuffer, int, int)}
+   * for a direct source and a heap destination.
+   */
+  static int encodeSequence(ByteBuffer src, int anchor, int matchOff, int matchRef, int matchLen, byte[] dest, int dOff, int destEnd) {
+    final int runLen = matchOff - anchor;
+    final int tokenOff = dOff++;
+
+    if (dOff + runLen + (2 + 1 + LAST_LITERALS) + (runLen >>> 8) > destEnd) {
+      throw new LZ4Exception("maxDestLen is too small");
+    }
+
+    int token;
+    if (runLen >= RUN_MASK) {
+      token = (byte) (RUN_MASK << ML_BITS);
+      dOff = LZ4SafeUtils.writeLen(runLen - RUN_MASK, dest, dOff);
+    } else {
+      token = runLen << ML_BITS;
+    }
+
+    // copy literals
+    safeArraycopy(src, anchor, dest, dOff, runLen);
+    dOff += runLen;
+
+    // encode offset
+    final int matchDec = matchOff - matchRef;
+    dest[dOff++] = (byte) matchDec;
+    dest[dOff++] = (byte) (matchDec >>> 8);
+
+    // encode match len
+    matchLen -= 4;
+    if (dOff + (1 + LAST_LITERALS) + (matchLen >>> 8) > destEnd) {
+      throw new LZ4Exception("maxDestLen is too small");
+    }
+    if (matchLen >= ML_MASK) {
+      token |= ML_MASK;
+      dOff = LZ4SafeUtils.writeLen(matchLen - RUN_MASK, dest, dOff);
+    } else {
+      token |= matchLen;
+    }
+
+    dest[tokenOff] = (byte) token;
+
+    return dOff;
+  }
+
+  static int lastLiterals(byte[] src, int sOff, int srcLen, ByteBuffer dest, int dOff, int destEnd) {
+    final int runLen = srcLen;
+
+    if (dOff + runLen + 1 + (runLen + 255 - RUN_MASK) / 255 > destEnd) {
+      throw new LZ4Exception();
+    }
+
+    if (runLen >= RUN_MASK) {
+      dest.put(dOff++, (byte) (RUN_MASK << ML_BITS));
+      dOff = writeLen(runLen - RUN_MASK, dest, dOff);
+    } else {
+      dest.put(dOff++, (byte) (runLen << ML_BITS));
+    }
+    // copy literals
+    safeArraycopy(src, sOff, dest, dOff, runLen);
+    dOff += runLen;
+
+    return dOff;
+  }
+
+  static int lastLiterals(ByteBuffer src, int sOff, int srcLen, byte[] dest, int dOff, int destEnd) {
+    final int runLen = srcLen;
+
+    if (dOff + runLen + 1 + (runLen + 255 - RUN_MASK) / 255 > destEnd) {
+      throw new LZ4Exception();
+    }
+
+    if (runLen >= RUN_MASK) {
+      dest[dOff++] = (byte) (RUN_MASK << ML_BITS);
+      dOff = LZ4SafeUtils.writeLen(runLen - RUN_MASK, dest, dOff);
+    } else {
+      dest[dOff++] = (byte) (runLen << ML_BITS);
+    }
+    // copy literals
+    safeArraycopy(src, sOff, dest, dOff, runLen);
+    dOff += runLen;
+
+    return dOff;
+  }
+
   static int writeLen(int len, ByteBuffer dest, int dOff) {
     while (len >= 0xFF) {
       dest.put(dOff++, (byte) 0xFF);
@@ -216,6 +485,72 @@ enum LZ4ByteBufferUtils {
     return dOff;
   }
 
+  /**
+   * Walks the sequences of the block <code>src[srcOff:srcOff+srcLen]</code>
+   * without decompressing it and returns its decompressed length. The block
+   * is validated like decompression into a buffer of exactly this length
+   * would, except for the content of the matches.
+   */
+  static int decompressedLength(ByteBuffer src, int srcOff, int srcLen) {
+    final int srcEnd = srcOff + srcLen;
+    int sOff = srcOff;
+    long dLen = 0;
+    long literalEnd = Long.MIN_VALUE; // end of the last literals which are followed by a match
+
+    while (true) {
+      if (sOff >= srcEnd) {
+        throw new LZ4Exception("Malformed input at " + sOff);
+      }
+      final int token = readByte(src, sOff++) & 0xFF;
+
+      // literals
+      long literalLen = token >>> ML_BITS;
+      if (literalLen == RUN_MASK) {
+        byte len = (byte) 0xFF;
+        while (sOff < srcEnd && (len = readByte(src, sOff++)) == (byte) 0xFF) {
+          literalLen += 0xFF;
+        }
+        literalLen += len & 0xFF;
+      }
+      if (literalLen == srcEnd - sOff) {
+        dLen += literalLen;
+        break; // EOF
+      } else if (literalLen > srcEnd - sOff - COPY_LENGTH) {
+        throw new LZ4Exception("Malformed input at " + sOff);
+      }
+      sOff += literalLen;
+      dLen += literalLen;
+      literalEnd = dLen;
+
+      // matchs
+      final int matchDec = readShortLE(src, sOff);
+      sOff += 2;
+      if (matchDec > dLen) {
+        throw new LZ4Exception("Malformed input at " + sOff);
+      }
+      long matchLen = token & ML_MASK;
+      if (matchLen == ML_MASK) {
+        byte len = (byte) 0xFF;
+        while (sOff < srcEnd && (len = readByte(src, sOff++)) == (byte) 0xFF) {
+          matchLen += 0xFF;
+        }
+        matchLen += len & 0xFF;
+      }
+      dLen += matchLen + MIN_MATCH;
+    }
+
+    if (dLen > Integer.MAX_VALUE) {
+      throw new LZ4Exception("Decompressed length exceeds " + Integer.MAX_VALUE);
+    } else if (dLen == 0 && (srcLen != 1 || readByte(src, srcOff) != 0)) {
+      throw new LZ4Exception("Malformed input at " + srcOff);
+    } else if (literalEnd > dLen - COPY_LENGTH) {
+      // decompressors copy literals 8 bytes at a time, only the last ones may
+      // end less than 8 bytes before the end of the output
+      throw new LZ4Exception("Malformed input at " + srcOff);
+    }
+    return (int) dLen;
+  }
+
   static class Match {
     int start, ref, len;
 
@@ -22,7 +22,8 @@ import java.util.Arrays;
 /**
  * LZ4 compressor.
  * <p>
- * Instances of this class are thread-safe.
+ * Instances of this class are thread-safe. The {@link LZ4CompressorState}s
+ * they return are not.
  */
 public abstract class LZ4Compressor {
 
@@ -81,6 +82,229 @@ public abstract class LZ4Compressor {
    */
   public abstract int compress(ByteBuffer src, int srcOff, int srcLen, ByteBuffer dest, int destOff, int maxDestLen);
 
+  /**
+   * Same as {@link #compress(byte[], int, int, byte[], int, int)} except that
+   * 0 is returned instead of throwing a {@link LZ4Exception} if the
+   * compressed data does not fit in <code>maxDestLen</code> bytes, like
+   * liblz4's <code>LZ4_compress_default</code>. Compression stops as soon as
+   * the output exceeds <code>maxDestLen</code>, which makes this method
+   * suited to checking whether data compresses below a given ratio before
+   * storing it raw otherwise. The content of <code>dest</code> is undefined
+   * when 0 is returned.
+   *
+   * @param src the source data
+   * @param srcOff the start offset in src
+   * @param srcLen the number of bytes to compress
+   * @param dest the destination buffer
+   * @param destOff the start offset in dest
+   * @param maxDestLen the maximum number of bytes to write in dest
+   * @return the compressed size, or 0 if maxDestLen is too small
+   */
+  public int tryCompress(byte[] src, int srcOff, int srcLen, byte[] dest, int destOff, int maxDestLen) {
+    try {
+      return compress(src, srcOff, srcLen, dest, destOff, maxDestLen);
+    } catch (LZ4Exception e) {
+      return 0;
+    }
+  }
+
+  /**
+   * Returns a new {@link LZ4CompressorState} which can be passed to
+   * {@link #compress(LZ4CompressorState, byte[], int, int, byte[], int, int)}
+   * in order to reuse working memory across calls.
+   *
+   * @return a new state for this compressor
+   */
+  public LZ4CompressorState newState() {
+    return new LZ4CompressorState();
+  }
+
+  /**
+   * Same as {@link #compress(byte[], int, int, byte[], int, int)} except that
+   * the hash tables held by <code>state</code> are used instead of allocating
+   * new ones.
+   *
+   * @param state a state returned by {@link #newState()}, which must not be
+   *              used concurrently
+   * @param src the source data
+   * @param srcOff the start offset in src
+   * @param srcLen the number of bytes to compress
+   * @param dest the destination buffer
+   * @param destOff the start offset in dest
+   * @param maxDestLen the maximum number of bytes to write in dest
+   * @throws LZ4Exception if maxDestLen is too small
+   * @return the compressed size
+   */
+  public int compress(LZ4CompressorState state, byte[] src, int srcOff, int srcLen, byte[] dest, int destOff, int maxDestLen) {
+    return compress(src, srcOff, srcLen, dest, destOff, maxDestLen);
+  }
+
+  /**
+   * Same as {@link #compress(ByteBuffer, int, int, ByteBuffer, int, int)}
+   * except that the hash tables held by <code>state</code> are used instead of
+   * allocating new ones.
+   *
+   * {@link ByteBuffer} positions remain unchanged.
+   *
+   * @param state a state returned by {@link #newState()}, which must not be
+   *              used concurrently
+   * @param src the source data
+   * @param srcOff the start offset in src
+   * @param srcLen the number of bytes to compress
+   * @param dest the destination buffer
+   * @param destOff the start offset in dest
+   * @param maxDestLen the maximum number of bytes to write in dest
+   * @throws LZ4Exception if maxDestLen is too small
+   * @return the compressed size
+   */
+  public int compress(LZ4CompressorState state, ByteBuffer src, int srcOff, int srcLen, ByteBuffer dest, int destOff, int maxDestLen) {
+    return compress(src, srcOff, srcLen, dest, destOff, maxDestLen);
+  }
+
+  /**
+   * Returns a {@link LZ4Dictionary} built from
+   * <code>dict[dictOff:dictOff+dictLen]</code> whose hash tables are computed
+   * for this compressor. The returned dictionary may be shared by several
+   * threads.
+   *
+   * @param dict the dictionary content
+   * @param dictOff the start offset in dict
+   * @param dictLen the length of the dictionary, only the last 64 KB are used
+   * @return a dictionary to pass to
+   *         {@link #compress(LZ4CompressorState, LZ4Dictionary, byte[], int, int, byte[], int, int)}
+   */
+  public LZ4Dictionary loadDictionary(byte[] dict, int dictOff, int dictLen) {
+    return new LZ4Dictionary(dict, dictOff, dictLen);
+  }
+
+  /**
+   * Same as {@link #compress(LZ4CompressorState, byte[], int, int, byte[], int, int)}
+   * except that matches may point into <code>dictionary</code>, similarly to
+   * liblz4's <code>LZ4_compress_fast_continue</code> after
+   * <code>LZ4_loadDict</code>. The compressed data must be decompressed with
+   * {@link LZ4SafeDecompressor#decompress(byte[], int, int, byte[], int, int, byte[], int, int)}
+   * and the same dictionary bytes.
+   *
+   * @param state a state returned by {@link #newState()}, which must not be
+   *              used concurrently
+   * @param dictionary a dictionary returned by
+   *                   {@link #loadDictionary(byte[], int, int)}
+   * @param src the source data
+   * @param srcOff the start offset in src
+   * @param srcLen the number of bytes to compress
+   * @param dest the destination buffer
+   * @param destOff the start offset in dest
+   * @param maxDestLen the maximum number of bytes to write in dest
+   * @throws LZ4Exception if maxDestLen is too small
+   * @return the compressed size
+   */
+  public int compress(LZ4CompressorState state, LZ4Dictionary dictionary, byte[] src, int srcOff, int srcLen, byte[] dest, int destOff, int maxDestLen) {
+    return compress(state, src, srcOff, srcLen, dest, destOff, maxDestLen);
+  }
+
+  /**
+   * Compresses as much of <code>src</code> as possible into the remaining
+   * bytes of <code>dest</code>, like liblz4's <code>LZ4_compress_destSize</code>.
+   * This is useful to fill fixed-size pages with compressed data without
+   * guessing how much input fits.
+   * <p>
+   * The position of <code>src</code> is advanced by the number of bytes which
+   * have been compressed and the one of <code>dest</code> by the compressed
+   * length. Decompressing the output gives back exactly the bytes which have
+   * been consumed from <code>src</code>. Nothing is consumed if
+   * <code>dest</code> has no remaining bytes.
+   *
+   * @param src the source data
+   * @param dest the destination buffer
+   * @return the compressed size
+   */
+  public final int compressDestSize(ByteBuffer src, ByteBuffer dest) {
+    final int maxDestLen = dest.remaining();
+    if (maxDestLen == 0) {
+      return 0;
+    }
+    // every byte of compressed data decodes to at most 255 bytes
+    final int srcLen = (int) Math.min(src.remaining(), 255L * maxDestLen);
+    final int[] srcSize = new int[1];
+    final int compressedLen;
+    if (src.hasArray() && dest.hasArray()) {
+      compressedLen = compressDestSize(src.array(), src.arrayOffset() + src.position(), srcLen,
+          dest.array(), dest.arrayOffset() + dest.position(), maxDestLen, srcSize);
+    } else {
+      final byte[] srcArray;
+      final int srcOff;
+      if (src.hasArray()) {
+        srcArray = src.array();
+        srcOff = src.arrayOffset() + src.position();
+      } else {
+        srcArray = new byte[srcLen];
+        srcOff = 0;
+        src.duplicate().get(srcArray);
+      }
+      if (dest.hasArray()) {
+        compressedLen = compressDestSize(srcArray, srcOff, srcLen,
+            dest.array(), dest.arrayOffset() + dest.position(), maxDestLen, srcSize);
+      } else {
+        final byte[] destArray = new byte[maxDestLen];
+        compressedLen = compressDestSize(srcArray, srcOff, srcLen, destArray, 0, maxDestLen, srcSize);
+        dest.duplicate().put(destArray, 0, compressedLen);
+      }
+    }
+    src.position(src.position() + srcSize[0]);
+    dest.position(dest.position() + compressedLen);
+    return compressedLen;
+  }
+
+  /**
+   * Compresses the longest prefix of <code>src[srcOff:srcOff+srcLen]</code>
+   * which fits in <code>dest[destOff:destOff+maxDestLen]</code>, with
+   * <code>maxDestLen &gt; 0</code>, stores its length in
+   * <code>srcSize[0]</code> and returns the compressed length. The default
+   * implementation looks for this prefix with a binary search.
+   */
+  int compressDestSize(byte[] src, int srcOff, int srcLen, byte[] dest, int destOff, int maxDestLen, int[] srcSize) {
+    srcSize[0] = srcLen;
+    final int compressedLen = tryCompress(src, srcOff, srcLen, dest, destOff, maxDestLen);
+    if (compressedLen > 0) {
+      return compressedLen;
+    }
+    int lo = 0, hi = srcLen; // the prefix of lo bytes fits, the one of hi bytes does not
+    while (hi - lo > 1) {
+      final int mid = (lo + hi) >>> 1;
+      if (tryCompress(src, srcOff, mid, dest, destOff, maxDestLen) > 0) {
+        lo = mid;
+      } else {
+        hi = mid;
+      }
+    }
+    srcSize[0] = lo;
+    return compress(src, srcOff, lo, dest, destOff, maxDestLen);
+  }
+
+  /**
+   * Starts a new stream of linked blocks compressed with
+   * {@link #compressLinked}: what <code>state</code> remembers from previous
+   * calls is no longer referenced.
+   */
+  void resetStream(LZ4CompressorState state) {}
+
+  /**
+   * Compresses <code>src[srcOff:srcOff+srcLen]</code>, matches may point into
+   * <code>src[base:srcOff]</code> which holds the previous blocks of the
+   * stream, as passed to previous calls. The default implementation compresses
+   * the block independently, which is valid for a linked stream too.
+   */
+  int compressLinked(LZ4CompressorState state, byte[] src, int base, int srcOff, int srcLen, byte[] dest, int destOff, int maxDestLen) {
+    return compress(state, src, srcOff, srcLen, dest, destOff, maxDestLen);
+  }
+
+  /**
+   * Notifies that the blocks of the current stream have been moved
+   * <code>shift</code> bytes towards the start of their buffer.
+   * <code>shift</code> is a multiple of {@link LZ4Constants#MAX_DISTANCE}.
+   */
+  void slideStream(LZ4CompressorState state, int shift) {}
+
   /**
    * Convenience method, equivalent to calling
    * {@link #compress(byte[], int, int, byte[], int, int) compress(src, srcOff, srcLen, dest, destOff, dest.length - destOff)}.
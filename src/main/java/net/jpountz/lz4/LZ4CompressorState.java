@@ -0,0 +1,60 @@
+package net.jpountz.lz4;
+
+/*
+ * Copyright 2020 Adrien Grand and the lz4-java contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Working memory of a {@link LZ4Compressor} which can be reused across calls,
+ * similar to the <code>state</code> argument of liblz4's
+ * <code>LZ4_compress_fast_extState</code>.
+ * <p>
+ * Compressing with a state saves allocating and clearing hash tables on every
+ * call: the tables are kept alive and entries written by previous calls are
+ * invalidated in constant time.
+ * <p>
+ * Instances of this class are NOT thread-safe. A state is typically owned by
+ * a single thread, for instance through a {@link ThreadLocal}.
+ *
+ * @see LZ4Compressor#newState()
+ * @see LZ4Compressor#compress(LZ4CompressorState, byte[], int, int, byte[], int, int)
+ */
+public class LZ4CompressorState {
+
+  private byte[] window;
+  private LZ4Dictionary windowDictionary;
+
+  LZ4CompressorState() {}
+
+  /**
+   * Returns a buffer which starts with the content of <code>dictionary</code>,
+   * followed by room for <code>len</code> bytes. The dictionary is only copied
+   * when it differs from the one of the previous call.
+   */
+  byte[] window(LZ4Dictionary dictionary, int len) {
+    final int dictLen = dictionary.bytes.length;
+    if (window == null || window.length - dictLen < len) {
+      final int minLen = dictLen + len;
+      window = new byte[window == null ? minLen : Math.max(minLen, window.length << 1)];
+      windowDictionary = null;
+    }
+    if (windowDictionary != dictionary) {
+      System.arraycopy(dictionary.bytes, 0, window, 0, dictLen);
+      windowDictionary = dictionary;
+    }
+    return window;
+  }
+
+}
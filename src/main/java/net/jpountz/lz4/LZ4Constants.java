@@ -23,7 +23,14 @@ enum LZ4Constants {
   static final int DEFAULT_COMPRESSION_LEVEL = 8+1;
   static final int MAX_COMPRESSION_LEVEL = 16+1;
 
+  static final int DEFAULT_ACCELERATION = 1;
+  static final int MAX_ACCELERATION = 65537;
+  static final int MAX_CACHED_ACCELERATION = 64;
+
   static final int MEMORY_USAGE = 14;
+  static final int MIN_MEMORY_USAGE = 10;
+  static final int MAX_MEMORY_USAGE = 20;
+  static final int AUTO_MEMORY_USAGE = 0;
   static final int NOT_COMPRESSIBLE_DETECTION_LEVEL = 6;
 
   static final int MIN_MATCH = 4;
@@ -0,0 +1,62 @@
+package net.jpountz.lz4;
+
+/*
+ * Copyright 2020 Adrien Grand and the lz4-java contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static net.jpountz.lz4.LZ4Constants.MAX_DISTANCE;
+
+import java.util.Arrays;
+
+import net.jpountz.util.SafeUtils;
+
+/**
+ * A dictionary which is preloaded into a {@link LZ4Compressor} before
+ * compressing data, similarly to liblz4's <code>LZ4_loadDict</code>. Small
+ * inputs which share content with the dictionary compress much better since
+ * matches can point into the dictionary.
+ * <p>
+ * Dictionaries are created with {@link LZ4Compressor#loadDictionary(byte[], int, int)},
+ * which computes the hash tables of the dictionary once. Only the last 64 KB
+ * of the dictionary are used since matches cannot be further away.
+ * <p>
+ * Data compressed with a dictionary must be decompressed with
+ * {@link LZ4SafeDecompressor#decompress(byte[], int, int, byte[], int, int, byte[], int, int)}
+ * and the same dictionary bytes.
+ * <p>
+ * Instances of this class are immutable and thread-safe.
+ *
+ * @see LZ4Compressor#compress(LZ4CompressorState, LZ4Dictionary, byte[], int, int, byte[], int, int)
+ */
+public class LZ4Dictionary {
+
+  final byte[] bytes;
+
+  LZ4Dictionary(byte[] dict, int dictOff, int dictLen) {
+    SafeUtils.checkRange(dict, dictOff, dictLen);
+    final int start = dictOff + Math.max(0, dictLen - MAX_DISTANCE);
+    this.bytes = Arrays.copyOfRange(dict, start, dictOff + dictLen);
+  }
+
+  /**
+   * Returns the number of bytes of this dictionary that matches may point to.
+   *
+   * @return the length of this dictionary, at most 64 KB
+   */
+  public int length() {
+    return bytes.length;
+  }
+
+}
@@ -18,8 +18,14 @@ package net.jpountz.lz4;
 
 import java.util.Arrays;
 
+import static net.jpountz.lz4.LZ4Constants.DEFAULT_ACCELERATION;
 import static net.jpountz.lz4.LZ4Constants.DEFAULT_COMPRESSION_LEVEL;
+import static net.jpountz.lz4.LZ4Constants.MAX_ACCELERATION;
+import static net.jpountz.lz4.LZ4Constants.MAX_CACHED_ACCELERATION;
 import static net.jpountz.lz4.LZ4Constants.MAX_COMPRESSION_LEVEL;
+import static net.jpountz.lz4.LZ4Constants.MAX_MEMORY_USAGE;
+import static net.jpountz.lz4.LZ4Constants.MEMORY_USAGE;
+import static net.jpountz.lz4.LZ4Constants.MIN_MEMORY_USAGE;
 
 /**
  * Entry point for the LZ4 API.
@@ -32,6 +38,13 @@ public final class LZ4Factory {
 
   private static LZ4Factory INSTANCE;
 
+  /**
+   * Memory usage which can be passed to
+   * {@link #fastCompressor(int, int)} so that the size of the hash table is
+   * picked for every input depending on its length.
+   */
+  public static final int AUTO_MEMORY_USAGE = LZ4Constants.AUTO_MEMORY_USAGE;
+
   /**
    * Returns a {@link LZ4Factory} instance that returns compressors and
    * decompressors that are written with Java's official API.
@@ -51,6 +64,7 @@ public final class LZ4Factory {
   private final LZ4FastDecompressor fastDecompressor;
   private final LZ4SafeDecompressor safeDecompressor;
   private final LZ4Compressor[] highCompressors = new LZ4Compressor[MAX_COMPRESSION_LEVEL+1];
+  private final LZ4Compressor[] fastCompressors = new LZ4Compressor[MAX_CACHED_ACCELERATION+1];
 
   private LZ4Factory() throws SecurityException, IllegalArgumentException {
     fastCompressor = new LZ4JavaSafeCompressor();
@@ -62,6 +76,11 @@ public final class LZ4Factory {
       if(level == DEFAULT_COMPRESSION_LEVEL) continue;
       highCompressors[level] = new LZ4HCJavaSafeCompressor(level);
     }
+    fastCompressors[DEFAULT_ACCELERATION] = fastCompressor;
+    for (int acceleration = 1; acceleration <= MAX_CACHED_ACCELERATION; acceleration++) {
+      if(acceleration == DEFAULT_ACCELERATION) continue;
+      fastCompressors[acceleration] = new LZ4JavaSafeCompressor(acceleration);
+    }
 
     // quickly test that everything works as expected
     final byte[] original = new byte[] {'a','b','c','d',' ',' ',' ',' ',' ',' ','a','b','c','d','e','f','g','h','i','j'};
@@ -92,6 +111,74 @@ public final class LZ4Factory {
     return fastCompressor;
   }
 
+  /**
+   * Returns a {@link LZ4Compressor} which trades compression ratio for speed,
+   * with the same meaning as the <code>acceleration</code> argument of
+   * liblz4's <code>LZ4_compress_fast</code>: every increment gives roughly
+   * +3% speed. The match finder gives up on incompressible regions faster
+   * as the acceleration grows, and the output can still be decompressed by any
+   * LZ4 decompressor.
+   * <ol>
+   *   <li>An acceleration of 1 is the same as {@link #fastCompressor()}.</li>
+   *   <li>An acceleration lower than 1 would be treated as 1.</li>
+   *   <li>An acceleration higher than 65537 would be treated as 65537.</li>
+   * </ol>
+   * Compressors for accelerations up to 64 are cached, higher accelerations
+   * return a new instance on every call.
+   *
+   * @param acceleration the acceleration factor, 1 or more; the higher the
+   * acceleration, the faster the compression and the lower the compression ratio
+   * @return a {@link LZ4Compressor} using the given acceleration
+   */
+  public LZ4Compressor fastCompressor(int acceleration) {
+    if (acceleration < 1) {
+      acceleration = DEFAULT_ACCELERATION;
+    } else if (acceleration > MAX_ACCELERATION) {
+      acceleration = MAX_ACCELERATION;
+    }
+    if (acceleration <= MAX_CACHED_ACCELERATION) {
+      return fastCompressors[acceleration];
+    }
+    return new LZ4JavaSafeCompressor(acceleration);
+  }
+
+  /**
+   * Returns a {@link LZ4Compressor} with the given acceleration, see
+   * {@link #fastCompressor(int)}, whose hash table takes
+   * <code>2^memoryUsage</code> bytes, similarly to liblz4's
+   * <code>LZ4_MEMORY_USAGE</code>.
+   * <p>A larger table finds more matches on large inputs while a smaller one is
+   * cheaper to allocate and to clear, which matters for small inputs.
+   * {@link #AUTO_MEMORY_USAGE} sizes the table on every call so that it is about
+   * as large as the input. For current implementations, the following is true
+   * about memory usage:<ol>
+   *   <li>It should be in range [10, 20], the default being 14.</li>
+   *   <li>A memory usage lower than 10 would be treated as 10, unless it is
+   *   {@link #AUTO_MEMORY_USAGE}.</li>
+   *   <li>A memory usage higher than 20 would be treated as 20.</li>
+   * </ol>
+   * Compressors which do not use the default memory usage are not cached.
+   *
+   * @param acceleration the acceleration factor, 1 or more
+   * @param memoryUsage the log2 of the size of the hash table in bytes, or
+   * {@link #AUTO_MEMORY_USAGE}
+   * @return a {@link LZ4Compressor} using the given acceleration and memory usage
+   */
+  public LZ4Compressor fastCompressor(int acceleration, int memoryUsage) {
+    if (memoryUsage == MEMORY_USAGE) {
+      return fastCompressor(acceleration);
+    }
+    if (acceleration < 1) {
+      acceleration = DEFAULT_ACCELERATION;
+    } else if (acceleration > MAX_ACCELERATION) {
+      acceleration = MAX_ACCELERATION;
+    }
+    if (memoryUsage != AUTO_MEMORY_USAGE) {
+      memoryUsage = Math.max(MIN_MEMORY_USAGE, Math.min(MAX_MEMORY_USAGE, memoryUsage));
+    }
+    return new LZ4JavaSafeCompressor(acceleration, memoryUsage);
+  }
+
   /**
    * Returns a {@link LZ4Compressor} which requires more memory than
    * {@link #fastCompressor()} and is slower but compresses more efficiently.
@@ -61,6 +61,33 @@ public abstract class LZ4FastDecompressor {
    */
   public abstract int decompress(ByteBuffer src, int srcOff, ByteBuffer dest, int destOff, int destLen);
 
+  /**
+   * Decompresses in place the compressed data which is stored at the end of
+   * <code>buf[off:off+len]</code>, that is
+   * <code>buf[off+len-compressedLen:off+len]</code>, into
+   * <code>buf[off:off+destLen]</code> and returns the number of bytes read
+   * from the compressed data. <code>destLen</code> must be exactly the size of
+   * the decompressed data and may not exceed
+   * <code>len - {@link LZ4SafeDecompressor#inPlaceMargin(int) inPlaceMargin}(compressedLen)</code>.
+   *
+   * @param buf the buffer which holds the compressed data and receives the
+   *        decompressed data
+   * @param off the start offset in buf
+   * @param len the size of the range of buf to use
+   * @param compressedLen the size of the compressed data
+   * @param destLen the <b>exact</b> size of the original input
+   * @return the number of bytes read to restore the original input
+   * @throws IllegalArgumentException if len is smaller than compressedLen or
+   *         than destLen plus the margin
+   */
+  public final int decompressInPlace(byte[] buf, int off, int len, int compressedLen, int destLen) {
+    final int maxDestLen = LZ4Utils.maxInPlaceDestLen(buf, off, len, compressedLen);
+    if (destLen > maxDestLen) {
+      throw new IllegalArgumentException("destLen must be <= " + maxDestLen + ", got " + destLen);
+    }
+    return decompress(buf, off + len - compressedLen, buf, off, destLen);
+  }
+
   /**
    * Convenience method, equivalent to calling
    * {@link #decompress(byte[], int, byte[], int, int) decompress(src, 0, dest, 0, destLen)}.
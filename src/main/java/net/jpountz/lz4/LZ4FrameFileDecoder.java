@@ -0,0 +1,460 @@
+package net.jpountz.lz4;
+
+/*
+ * Copyright 2020 Adrien Grand and the lz4-java contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import net.jpountz.lz4.LZ4FrameOutputStream.BD;
+import net.jpountz.lz4.LZ4FrameOutputStream.FLG;
+import net.jpountz.xxhash.StreamingXXHash32;
+import net.jpountz.xxhash.XXHash32;
+import net.jpountz.xxhash.XXHashFactory;
+
+/**
+ * Decompresses whole files of concatenated LZ4 frames with several threads.
+ * <p>
+ * The file is first indexed by walking block headers, which only reads the
+ * length of every block and skips its content. The decompressed length of
+ * every block is then computed in parallel with
+ * {@link LZ4SafeDecompressor#getDecompressedLength(byte[], int, int)}, which
+ * gives the offset of every block in the output, and blocks are finally
+ * decompressed in parallel and written at these offsets. Content checksums
+ * are verified by reading the output back once it is complete.
+ * <p>
+ * Skippable frames are skipped. Frames with linked blocks are supported, but
+ * each of them is decompressed by a single thread, which is the calling
+ * thread when the frame does not have a content size.
+ * <p>
+ * Instances of this class are thread-safe.
+ *
+ * @see LZ4FrameInputStream
+ */
+public class LZ4FrameFileDecoder {
+
+  private final LZ4SafeDecompressor decompressor;
+  private final XXHash32 checksum;
+  private final ForkJoinPool pool;
+
+  /**
+   * Creates a new decoder which uses the fastest instances of
+   * {@link LZ4SafeDecompressor} and {@link XXHash32} and the common
+   * {@link ForkJoinPool}.
+   */
+  public LZ4FrameFileDecoder() {
+    this(LZ4Factory.getInstance().safeDecompressor(), XXHashFactory.fastestInstance().hash32(), ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Creates a new decoder.
+   *
+   * @param decompressor the decompressor to use
+   * @param checksum the hash function to use
+   * @param pool the pool which decompresses blocks
+   */
+  public LZ4FrameFileDecoder(LZ4SafeDecompressor decompressor, XXHash32 checksum, ForkJoinPool pool) {
+    this.decompressor = decompressor;
+    this.checksum = checksum;
+    this.pool = pool;
+  }
+
+  /**
+   * Decompresses all the frames of <code>src</code> into <code>dest</code>,
+   * starting at its current position, and moves the position of
+   * <code>dest</code> after the decompressed data.
+   *
+   * @param src the file to decompress, which is read with positional reads
+   * @param dest the file to write decompressed data to
+   * @return the decompressed length
+   * @throws IOException if an I/O error occurs or if <code>src</code> is malformed
+   */
+  public long decompress(FileChannel src, final FileChannel dest) throws IOException {
+    final long destOff = dest.position();
+    final long len = decompress(src, new Output() {
+      @Override
+      public void write(long off, byte[] b, int bOff, int bLen) throws IOException {
+        final ByteBuffer buf = ByteBuffer.wrap(b, bOff, bLen);
+        while (buf.hasRemaining()) {
+          dest.write(buf, destOff + off + bLen - buf.remaining());
+        }
+      }
+
+      @Override
+      public void read(long off, byte[] b, int bOff, int bLen) throws IOException {
+        readFully(dest, ByteBuffer.wrap(b, bOff, bLen), destOff + off);
+      }
+    }, Long.MAX_VALUE - destOff);
+    dest.position(destOff + len);
+    return len;
+  }
+
+  /**
+   * Decompresses all the frames of <code>src</code> into <code>dest</code>,
+   * typically a {@link java.nio.MappedByteBuffer}, starting at its current
+   * position, and moves the position of <code>dest</code> after the
+   * decompressed data.
+   *
+   * @param src the file to decompress, which is read with positional reads
+   * @param dest the buffer to write decompressed data to
+   * @return the decompressed length
+   * @throws IOException if an I/O error occurs, if <code>src</code> is
+   *         malformed or if it does not fit in <code>dest</code>
+   */
+  public int decompress(FileChannel src, final ByteBuffer dest) throws IOException {
+    final int destOff = dest.position();
+    final long len = decompress(src, new Output() {
+      @Override
+      public void write(long off, byte[] b, int bOff, int bLen) {
+        final ByteBuffer buf = dest.duplicate();
+        buf.position(destOff + (int) off);
+        buf.put(b, bOff, bLen);
+      }
+
+      @Override
+      public void read(long off, byte[] b, int bOff, int bLen) {
+        final ByteBuffer buf = dest.duplicate();
+        buf.position(destOff + (int) off);
+        buf.get(b, bOff, bLen);
+      }
+    }, dest.remaining());
+    dest.position(destOff + (int) len);
+    return (int) len;
+  }
+
+  /**
+   * Where decompressed data goes, at offsets which are relative to the start
+   * of the output. Both methods may be called concurrently.
+   */
+  private interface Output {
+    void write(long off, byte[] b, int bOff, int bLen) throws IOException;
+    void read(long off, byte[] b, int bOff, int bLen) throws IOException;
+  }
+
+  /**
+   * A frame of the file.
+   */
+  private static final class Frame {
+    final FLG flg;
+    final int maxBlockSize;
+    final long contentSize; // -1 if unknown
+    final List<Block> blocks = new ArrayList<>();
+    int contentChecksum;
+    long destOff;
+    long decompressedLen = -1; // -1 until known
+
+    Frame(FLG flg, int maxBlockSize, long contentSize) {
+      this.flg = flg;
+      this.maxBlockSize = maxBlockSize;
+      this.contentSize = contentSize;
+    }
+  }
+
+  /**
+   * A data block of a frame.
+   */
+  private static final class Block {
+    final long srcOff;
+    final int size;
+    final boolean compressed;
+    int hash;
+    int decompressedLen;
+    long destOff;
+
+    Block(long srcOff, int size, boolean compressed) {
+      this.srcOff = srcOff;
+      this.size = size;
+      this.compressed = compressed;
+    }
+  }
+
+  private long decompress(final FileChannel src, final Output dest, long maxDestLen) throws IOException {
+    final List<Frame> frames = index(src);
+
+    // decompressed lengths of independent blocks
+    final List<Callable<Void>> tasks = new ArrayList<>();
+    for (final Frame frame : frames) {
+      if (frame.flg.isEnabled(FLG.Bits.BLOCK_INDEPENDENCE)) {
+        for (final Block block : frame.blocks) {
+          tasks.add(() -> {
+            block.decompressedLen = block.compressed ? LZ4SafeDecompressor.getDecompressedLength(read(src, block), 0, block.size) : block.size;
+            if (block.decompressedLen > frame.maxBlockSize) {
+              throw new IOException(String.format(Locale.ROOT, "Block size %s exceeded max: %s", block.decompressedLen, frame.maxBlockSize));
+            }
+            return null;
+          });
+        }
+      }
+    }
+    invokeAll(tasks);
+    tasks.clear();
+
+    // offsets, linked frames of unknown size are decompressed right away
+    long destOff = 0;
+    for (final Frame frame : frames) {
+      frame.destOff = destOff;
+      if (frame.flg.isEnabled(FLG.Bits.BLOCK_INDEPENDENCE)) {
+        long len = 0;
+        for (Block block : frame.blocks) {
+          block.destOff = destOff + len;
+          len += block.decompressedLen;
+        }
+        frame.decompressedLen = len;
+      } else if (frame.contentSize >= 0) {
+        frame.decompressedLen = frame.contentSize;
+      } else {
+        decompressLinked(src, frame, dest, maxDestLen - destOff);
+      }
+      if (frame.contentSize >= 0 && frame.contentSize != frame.decompressedLen) {
+        throw new IOException("Size check mismatch");
+      }
+      destOff += frame.decompressedLen;
+      if (destOff > maxDestLen) {
+        throw new IOException("Destination is too small");
+      }
+    }
+
+    for (final Frame frame : frames) {
+      if (frame.flg.isEnabled(FLG.Bits.BLOCK_INDEPENDENCE)) {
+        for (final Block block : frame.blocks) {
+          tasks.add(() -> {
+            decompressIndependent(src, frame, block, dest);
+            return null;
+          });
+        }
+      } else if (frame.contentSize >= 0) {
+        tasks.add(() -> {
+          decompressLinked(src, frame, dest, frame.decompressedLen);
+          return null;
+        });
+      }
+    }
+    invokeAll(tasks);
+    tasks.clear();
+
+    // content checksums, linked frames are verified while they are decompressed
+    for (final Frame frame : frames) {
+      if (frame.flg.isEnabled(FLG.Bits.BLOCK_INDEPENDENCE) && frame.flg.isEnabled(FLG.Bits.CONTENT_CHECKSUM)) {
+        tasks.add(() -> {
+          final StreamingXXHash32 hash = XXHashFactory.fastestInstance().newStreamingHash32(0);
+          final byte[] buf = new byte[(int) Math.min(frame.maxBlockSize, Math.max(frame.decompressedLen, 1))];
+          for (long off = 0; off < frame.decompressedLen; ) {
+            final int len = (int) Math.min(buf.length, frame.decompressedLen - off);
+            dest.read(frame.destOff + off, buf, 0, len);
+            hash.update(buf, 0, len);
+            off += len;
+          }
+          if (hash.getValue() != frame.contentChecksum) {
+            throw new IOException("Content checksum mismatch");
+          }
+          return null;
+        });
+      }
+    }
+    invokeAll(tasks);
+
+    return destOff;
+  }
+
+  /**
+   * Walks the frames of <code>src</code> and the headers of their blocks.
+   */
+  private List<Frame> index(FileChannel src) throws IOException {
+    final List<Frame> frames = new ArrayList<>();
+    final ByteBuffer header = ByteBuffer.allocate(LZ4FrameOutputStream.LZ4_MAX_HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+    final long srcLen = src.size();
+    long srcOff = 0;
+    while (srcOff < srcLen) {
+      final int magic = readInt(src, header, srcOff);
+      srcOff += LZ4FrameOutputStream.INTEGER_BYTES;
+      if ((magic >>> 4) == (LZ4FrameInputStream.MAGIC_SKIPPABLE_BASE >>> 4)) {
+        srcOff += LZ4FrameOutputStream.INTEGER_BYTES + (readInt(src, header, srcOff) & 0xFFFFFFFFL);
+        if (srcOff > srcLen) {
+          throw new IOException(LZ4FrameInputStream.PREMATURE_EOS);
+        }
+        continue;
+      } else if (magic != LZ4FrameOutputStream.MAGIC) {
+        throw new IOException(LZ4FrameInputStream.NOT_SUPPORTED);
+      }
+
+      // frame descriptor
+      header.clear().limit(2);
+      readFully(src, header, srcOff);
+      final FLG flg = FLG.fromByte(header.get(0));
+      final BD bd = BD.fromByte(header.get(1));
+      final int descriptorLen = flg.isEnabled(FLG.Bits.CONTENT_SIZE) ? 2 + LZ4FrameOutputStream.LONG_BYTES : 2;
+      header.clear().limit(descriptorLen + 1);
+      readFully(src, header, srcOff);
+      final long contentSize = flg.isEnabled(FLG.Bits.CONTENT_SIZE) ? header.getLong(2) : -1L;
+      final byte hash = (byte) ((checksum.hash(header.array(), 0, descriptorLen, 0) >> 8) & 0xFF);
+      if (hash != header.get(descriptorLen)) {
+        throw new IOException(LZ4FrameInputStream.DESCRIPTOR_HASH_MISMATCH);
+      }
+      srcOff += descriptorLen + 1;
+      final Frame frame = new Frame(flg, bd.getBlockMaximumSize(), contentSize);
+
+      // block headers
+      while (true) {
+        int blockSize = readInt(src, header, srcOff);
+        srcOff += LZ4FrameOutputStream.INTEGER_BYTES;
+        final boolean compressed = (blockSize & LZ4FrameOutputStream.LZ4_FRAME_INCOMPRESSIBLE_MASK) == 0;
+        blockSize &= ~LZ4FrameOutputStream.LZ4_FRAME_INCOMPRESSIBLE_MASK;
+        if (blockSize == 0) {
+          if (flg.isEnabled(FLG.Bits.CONTENT_CHECKSUM)) {
+            frame.contentChecksum = readInt(src, header, srcOff);
+            srcOff += LZ4FrameOutputStream.INTEGER_BYTES;
+          }
+          break;
+        }
+        if (blockSize > frame.maxBlockSize) {
+          throw new IOException(String.format(Locale.ROOT, "Block size %s exceeded max: %s", blockSize, frame.maxBlockSize));
+        }
+        final Block block = new Block(srcOff, blockSize, compressed);
+        srcOff += blockSize;
+        if (flg.isEnabled(FLG.Bits.BLOCK_CHECKSUM)) {
+          block.hash = readInt(src, header, srcOff);
+          srcOff += LZ4FrameOutputStream.INTEGER_BYTES;
+        }
+        frame.blocks.add(block);
+      }
+      frames.add(frame);
+    }
+    return frames;
+  }
+
+  private static int readInt(FileChannel src, ByteBuffer buf, long position) throws IOException {
+    buf.clear().limit(LZ4FrameOutputStream.INTEGER_BYTES);
+    readFully(src, buf, position);
+    return buf.getInt(0);
+  }
+
+  private static void readFully(FileChannel src, ByteBuffer buf, long position) throws IOException {
+    while (buf.hasRemaining()) {
+      final int len = src.read(buf, position);
+      if (len < 0) {
+        throw new IOException(LZ4FrameInputStream.PREMATURE_EOS);
+      }
+      position += len;
+    }
+  }
+
+  /**
+   * Reads the content of <code>block</code>.
+   */
+  private static byte[] read(FileChannel src, Block block) throws IOException {
+    final byte[] b = new byte[block.size];
+    readFully(src, ByteBuffer.wrap(b), block.srcOff);
+    return b;
+  }
+
+  private void verify(Frame frame, Block block, byte[] b, int off) throws IOException {
+    if (frame.flg.isEnabled(FLG.Bits.BLOCK_CHECKSUM) && block.hash != checksum.hash(b, off, block.size, 0)) {
+      throw new IOException(LZ4FrameInputStream.BLOCK_HASH_MISMATCH);
+    }
+  }
+
+  private void decompressIndependent(FileChannel src, Frame frame, Block block, Output dest) throws IOException {
+    if (!block.compressed) {
+      final byte[] b = read(src, block);
+      verify(frame, block, b, 0);
+      dest.write(block.destOff, b, 0, block.size);
+      return;
+    }
+    // read at the end of the buffer and decompress in place
+    final int inPlaceLen = block.decompressedLen + LZ4SafeDecompressor.inPlaceMargin(block.size);
+    final byte[] b = new byte[Math.max(inPlaceLen, block.size)];
+    readFully(src, ByteBuffer.wrap(b, b.length - block.size, block.size), block.srcOff);
+    verify(frame, block, b, b.length - block.size);
+    if (decompressor.decompressInPlace(b, 0, b.length, block.size) != block.decompressedLen) {
+      throw new IOException("Malformed block at " + block.srcOff);
+    }
+    dest.write(block.destOff, b, 0, block.decompressedLen);
+  }
+
+  /**
+   * Decompresses a frame of linked blocks, verifies its content checksum and
+   * sets its decompressed length, which must not exceed <code>maxLen</code>.
+   */
+  private void decompressLinked(FileChannel src, Frame frame, Output dest, long maxLen) throws IOException {
+    final LZ4StreamDecoder decoder = new LZ4StreamDecoder(decompressor, frame.maxBlockSize);
+    final StreamingXXHash32 hash = frame.flg.isEnabled(FLG.Bits.CONTENT_CHECKSUM) ? XXHashFactory.fastestInstance().newStreamingHash32(0) : null;
+    long len = 0;
+    for (Block block : frame.blocks) {
+      final byte[] b = read(src, block);
+      verify(frame, block, b, 0);
+      final int blockLen;
+      try {
+        if (block.compressed) {
+          blockLen = decoder.decompress(b, 0, block.size);
+        } else {
+          decoder.append(b, 0, block.size);
+          blockLen = block.size;
+        }
+      } catch (LZ4Exception e) {
+        throw new IOException(e);
+      }
+      if (blockLen > maxLen - len) {
+        throw new IOException(frame.contentSize >= 0 ? "Size check mismatch" : "Destination is too small");
+      }
+      final int blockOff = decoder.position() - blockLen;
+      dest.write(frame.destOff + len, decoder.buffer(), blockOff, blockLen);
+      if (hash != null) {
+        hash.update(decoder.buffer(), blockOff, blockLen);
+      }
+      len += blockLen;
+    }
+    if (frame.contentSize >= 0 && len != frame.contentSize) {
+      throw new IOException("Size check mismatch");
+    }
+    if (hash != null && hash.getValue() != frame.contentChecksum) {
+      throw new IOException("Content checksum mismatch");
+    }
+    frame.decompressedLen = len;
+  }
+
+  private void invokeAll(List<Callable<Void>> tasks) throws IOException {
+    if (tasks.isEmpty()) {
+      return;
+    }
+    try {
+      for (Future<Void> future : pool.invokeAll(tasks)) {
+        future.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    } catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IOException(cause);
+    }
+  }
+
+}
@@ -22,15 +22,29 @@ import net.jpountz.xxhash.XXHashFactory;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.ArrayDeque;
 import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 
 /**
  * Implementation of the v1.5.1 LZ4 Frame format. This class is NOT thread safe.
  * <p>
+ * Both independent and linked blocks are supported, linked blocks are
+ * decompressed into a buffer which keeps the last 64 KB of the frame.
+ * <p>
+ * Independent blocks can be read ahead: when an {@link Executor} is given,
+ * the next blocks are read, verified and decompressed by tasks of this
+ * executor while the current one is consumed. Blocks are still returned in
+ * order and the content checksum and size are checked when the end of the
+ * frame is reached, like without read-ahead. Linked blocks and frame headers
+ * are always read by the calling thread.
+ * <p>
  * Not Supported:<ul>
- * <li>Dependent blocks</li>
  * <li>Legacy streams</li>
  * </ul>
  * <p>
@@ -51,13 +65,20 @@ public class LZ4FrameInputStream extends FilterInputStream {
   private final byte[] headerArray = new byte[LZ4FrameOutputStream.LZ4_MAX_HEADER_LENGTH];
   private final ByteBuffer headerBuffer = ByteBuffer.wrap(headerArray).order(ByteOrder.LITTLE_ENDIAN);
   private final boolean readSingleFrame;
-  private byte[] compressedBuffer;
   private ByteBuffer buffer = null;
-  private byte[] rawBuffer = null;
+  private byte[] rawBuffer = null; // also holds compressed blocks, which are decompressed in place
+  private LZ4StreamDecoder decoder = null; // null if blocks are independent
+  private LZ4StreamDecoder linkedDecoder = null; // kept to be reused by the next frames with linked blocks
   private int maxBlockSize = -1;
   private long expectedContentSize = -1L;
   private long totalContentSize = 0L;
   private boolean firstFrameHeaderRead = false;
+  private final Executor executor; // null if blocks are not read ahead
+  private final int readAheadBlocks;
+  private final ArrayDeque<CompletableFuture<Block>> readAhead = new ArrayDeque<>(); // in frame order
+  private final ArrayDeque<Block> freeBlocks = new ArrayDeque<>();
+  private CompletableFuture<Block> lastRead = null; // null if no block of the current frame is being read
+  private Block currentBlock = null; // the read-ahead block which backs buffer
 
   private LZ4FrameOutputStream.FrameInfo frameInfo = null;
 
@@ -116,10 +137,35 @@ public class LZ4FrameInputStream extends FilterInputStream {
    * @throws IOException if an I/O error occurs
    */
   public LZ4FrameInputStream(InputStream in, LZ4SafeDecompressor decompressor,  XXHash32 checksum, boolean readSingleFrame) throws IOException {
+    this(in, decompressor, checksum, readSingleFrame, null, 0);
+  }
+
+  /**
+   * Creates a new {@link InputStream} that will decompress data using the LZ4
+   * algorithm and read up to <code>readAheadBlocks</code> independent blocks
+   * ahead on <code>executor</code>. Memory usage grows with the number of
+   * blocks which are read ahead, each of them needs a buffer of about the
+   * maximum block size of the frame.
+   *
+   * @param in the stream to decompress
+   * @param decompressor the decompressor to use
+   * @param checksum the hash function to use
+   * @param readSingleFrame whether read is stopped after the first non-skippable frame
+   * @param executor the executor which reads and decompresses blocks ahead, or null to read blocks on demand
+   * @param readAheadBlocks the maximum number of blocks which are read ahead, at least 1 if <code>executor</code> is not null
+   * @throws IOException if an I/O error occurs
+   */
+  public LZ4FrameInputStream(InputStream in, LZ4SafeDecompressor decompressor,  XXHash32 checksum, boolean readSingleFrame,
+                             Executor executor, int readAheadBlocks) throws IOException {
     super(in);
+    if (executor != null && readAheadBlocks < 1) {
+      throw new IllegalArgumentException("readAheadBlocks must be >= 1, got " + readAheadBlocks);
+    }
     this.decompressor = decompressor;
     this.checksum = checksum;
     this.readSingleFrame = readSingleFrame;
+    this.executor = executor;
+    this.readAheadBlocks = readAheadBlocks;
   }
 
 
@@ -187,7 +233,11 @@ public class LZ4FrameInputStream extends FilterInputStream {
     final LZ4FrameOutputStream.BD bd = LZ4FrameOutputStream.BD.fromByte(bdByte);
     headerBuffer.put(bdByte);
 
-    this.frameInfo = new LZ4FrameOutputStream.FrameInfo(flg, bd);
+    if (frameInfo == null) {
+      frameInfo = new LZ4FrameOutputStream.FrameInfo(flg, bd);
+    } else {
+      frameInfo.reset(flg, bd);
+    }
 
     if (flg.isEnabled(LZ4FrameOutputStream.FLG.Bits.CONTENT_SIZE)) {
       expectedContentSize = readLong(in);
@@ -206,10 +256,29 @@ public class LZ4FrameInputStream extends FilterInputStream {
       throw new IOException(DESCRIPTOR_HASH_MISMATCH);
     }
 
+    // buffers of the previous frames are reused when they are large enough,
+    // offsets only depend on maxBlockSize
     maxBlockSize = frameInfo.getBD().getBlockMaximumSize();
-    compressedBuffer = new byte[maxBlockSize]; // Reused during different compressions
-    rawBuffer = new byte[maxBlockSize];
-    buffer = ByteBuffer.wrap(rawBuffer);
+    final int rawBufferSize;
+    if (flg.isEnabled(LZ4FrameOutputStream.FLG.Bits.BLOCK_INDEPENDENCE)) {
+      rawBufferSize = LZ4SafeDecompressor.inPlaceBufferSize(maxBlockSize);
+      decoder = null;
+    } else {
+      // linked blocks are decompressed into the decoder
+      rawBufferSize = maxBlockSize;
+      if (linkedDecoder == null || linkedDecoder.getMaxBlockSize() != maxBlockSize) {
+        linkedDecoder = new LZ4StreamDecoder(decompressor, maxBlockSize);
+      } else {
+        linkedDecoder.reset();
+      }
+      decoder = linkedDecoder;
+    }
+    if (rawBuffer == null || rawBuffer.length < rawBufferSize) {
+      rawBuffer = new byte[rawBufferSize];
+    }
+    if (buffer == null) {
+      buffer = ByteBuffer.wrap(rawBuffer);
+    }
     buffer.limit(0);
     firstFrameHeaderRead = true;
   }
@@ -240,6 +309,55 @@ public class LZ4FrameInputStream extends FilterInputStream {
     return readNumberBuff.getInt(0);
   }
 
+  private void readFully(byte[] b, int off, int len) throws IOException {
+    while (len > 0) {
+      final int lastRead = in.read(b, off, len);
+      if (lastRead < 0) {
+        throw new IOException(PREMATURE_EOS);
+      }
+      off += lastRead;
+      len -= lastRead;
+    }
+  }
+
+  /**
+   * Checks the content checksum and size of the frame once its end mark is read.
+   */
+  private void endOfFrame(int contentChecksum) throws IOException {
+    if (frameInfo.isEnabled(LZ4FrameOutputStream.FLG.Bits.CONTENT_CHECKSUM) && contentChecksum != frameInfo.currentStreamHash()) {
+      throw new IOException("Content checksum mismatch");
+    }
+    if (frameInfo.isEnabled(LZ4FrameOutputStream.FLG.Bits.CONTENT_SIZE) && expectedContentSize != totalContentSize) {
+      throw new IOException("Size check mismatch");
+    }
+    frameInfo.finish();
+  }
+
+  /**
+   * Accounts for <code>len</code> decompressed bytes of <code>blockBuffer</code>
+   * in the content checksum and size, these bytes must follow the previous
+   * ones in the frame.
+   */
+  private void updateContent(byte[] blockBuffer, int blockOffset, int len) {
+    if (frameInfo.isEnabled(LZ4FrameOutputStream.FLG.Bits.CONTENT_CHECKSUM)) {
+      frameInfo.updateStreamHash(blockBuffer, blockOffset, len);
+    }
+    totalContentSize += len;
+  }
+
+  /**
+   * Makes <code>len</code> decompressed bytes of <code>blockBuffer</code>
+   * available to readers, these bytes must follow the previous ones in the frame.
+   */
+  private void setBlock(byte[] blockBuffer, int blockOffset, int len) {
+    updateContent(blockBuffer, blockOffset, len);
+    if (buffer.array() != blockBuffer) {
+      buffer = ByteBuffer.wrap(blockBuffer);
+    }
+    buffer.limit(blockOffset + len);
+    buffer.position(blockOffset);
+  }
+
   /**
    * Decompress (if necessary) buffered data, optionally computes and validates a XXHash32 checksum, and writes the
    * result to a buffer.
@@ -247,68 +365,220 @@ public class LZ4FrameInputStream extends FilterInputStream {
    * @throws IOException
    */
   private void readBlock() throws IOException {
+    readBlock(null, 0, 0);
+  }
+
+  /**
+   * Same as {@link #readBlock()}, except that an independent block which fits
+   * in <code>dest[destOff:destOff+destLen]</code> is decompressed there
+   * directly, instead of being made available in {@link #buffer}.
+   *
+   * @return the number of bytes which have been decompressed into dest
+   */
+  private int readBlock(byte[] dest, int destOff, int destLen) throws IOException {
+    if (executor != null && decoder == null) {
+      readBlockAhead();
+      return 0;
+    }
     int blockSize = readInt(in);
     final boolean compressed = (blockSize & LZ4FrameOutputStream.LZ4_FRAME_INCOMPRESSIBLE_MASK) == 0;
     blockSize &= ~LZ4FrameOutputStream.LZ4_FRAME_INCOMPRESSIBLE_MASK;
 
     // Check for EndMark
     if (blockSize == 0) {
-      if (frameInfo.isEnabled(LZ4FrameOutputStream.FLG.Bits.CONTENT_CHECKSUM)) {
-        final int contentChecksum = readInt(in);
-        if (contentChecksum != frameInfo.currentStreamHash()) {
-          throw new IOException("Content checksum mismatch");
-        }
-      }
-      if (frameInfo.isEnabled(LZ4FrameOutputStream.FLG.Bits.CONTENT_SIZE) && expectedContentSize != totalContentSize) {
-	throw new IOException("Size check mismatch");
-      }
-      frameInfo.finish();
-      return;
+      endOfFrame(frameInfo.isEnabled(LZ4FrameOutputStream.FLG.Bits.CONTENT_CHECKSUM) ? readInt(in) : 0);
+      return 0;
     }
 
-    final byte[] tmpBuffer; // Use a temporary buffer, potentially one used for compression
-    if (compressed) {
-      tmpBuffer = compressedBuffer;
-    } else {
-      tmpBuffer = rawBuffer;
-    }
     if (blockSize > maxBlockSize) {
       throw new IOException(String.format(Locale.ROOT, "Block size %s exceeded max: %s", blockSize, maxBlockSize));
     }
 
-    int offset = 0;
-    while (offset < blockSize) {
-      final int lastRead = in.read(tmpBuffer, offset, blockSize - offset);
-      if (lastRead < 0) {
-        throw new IOException(PREMATURE_EOS);
-      }
-      offset += lastRead;
+    // whole independent blocks which fit in dest are decompressed there
+    final boolean direct = dest != null && decoder == null && destLen >= (compressed ? maxBlockSize : blockSize);
+    // other independent compressed blocks are read at the end of the in-place
+    // range of rawBuffer so that they can be decompressed to its start
+    final int inPlaceLen = maxBlockSize + LZ4SafeDecompressor.inPlaceMargin(blockSize);
+    final byte[] readBuffer = direct && !compressed ? dest : rawBuffer;
+    final int readOffset;
+    if (direct) {
+      readOffset = compressed ? 0 : destOff;
+    } else {
+      readOffset = compressed && decoder == null ? inPlaceLen - blockSize : 0;
     }
+    readFully(readBuffer, readOffset, blockSize);
 
     // verify block checksum
     if (frameInfo.isEnabled(LZ4FrameOutputStream.FLG.Bits.BLOCK_CHECKSUM)) {
       final int hashCheck = readInt(in);
-      if (hashCheck != checksum.hash(tmpBuffer, 0, blockSize, 0)) {
+      if (hashCheck != checksum.hash(readBuffer, readOffset, blockSize, 0)) {
         throw new IOException(BLOCK_HASH_MISMATCH);
       }
     }
 
+    final byte[] blockBuffer;
+    final int blockOffset;
     final int currentBufferSize;
-    if (compressed) {
-      try {
-        currentBufferSize = decompressor.decompress(tmpBuffer, 0, blockSize, rawBuffer, 0, rawBuffer.length);
-      } catch (LZ4Exception e) {
-        throw new IOException(e);
+    try {
+      if (!compressed) {
+        if (decoder != null) {
+          decoder.append(rawBuffer, 0, blockSize);
+        }
+        blockBuffer = readBuffer;
+        blockOffset = readOffset;
+        currentBufferSize = blockSize;
+      } else if (direct) {
+        blockBuffer = dest;
+        blockOffset = destOff;
+        currentBufferSize = decompressor.decompress(rawBuffer, 0, blockSize, dest, destOff, maxBlockSize);
+      } else if (decoder == null) {
+        blockBuffer = rawBuffer;
+        blockOffset = 0;
+        currentBufferSize = decompressor.decompressInPlace(rawBuffer, 0, inPlaceLen, blockSize);
+      } else {
+        // linked blocks are read from the history of the decoder
+        currentBufferSize = decoder.decompress(rawBuffer, 0, blockSize);
+        blockBuffer = decoder.buffer();
+        blockOffset = decoder.position() - currentBufferSize;
+      }
+    } catch (LZ4Exception e) {
+      throw new IOException(e);
+    }
+    if (direct) {
+      updateContent(blockBuffer, blockOffset, currentBufferSize);
+      return currentBufferSize;
+    }
+    setBlock(blockBuffer, blockOffset, currentBufferSize);
+    return 0;
+  }
+
+  /**
+   * Returns whether the next block can probably be read without blocking.
+   */
+  private boolean nextBlockAvailable() throws IOException {
+    if (lastRead != null && !readAhead.isEmpty()) {
+      return readAhead.peek().isDone();
+    }
+    return in.available() > 0;
+  }
+
+  /**
+   * An independent block which is read and decompressed ahead.
+   */
+  private static final class Block {
+    final byte[] data; // holds the compressed block, which is decompressed in place
+    int blockSize; // 0 for the end mark, -1 if the block is after the end mark
+    boolean compressed;
+    int hash; // the block checksum, or the content checksum for the end mark
+    int len; // the decompressed length
+
+    Block(int size) {
+      data = new byte[size];
+    }
+  }
+
+  /**
+   * Same as {@link #readBlock()} for independent blocks, except that the
+   * next blocks are read and decompressed on {@link #executor}.
+   */
+  private void readBlockAhead() throws IOException {
+    if (currentBlock != null) {
+      freeBlocks.add(currentBlock);
+      currentBlock = null;
+    }
+    final int bufferSize = LZ4SafeDecompressor.inPlaceBufferSize(maxBlockSize);
+    while (readAhead.size() < readAheadBlocks) {
+      Block block = freeBlocks.poll();
+      if (block == null || block.data.length < bufferSize) {
+        block = new Block(bufferSize);
+      }
+      final Block next = block;
+      // blocks are read one after the other, but decompressed concurrently
+      final CompletableFuture<Block> previous = lastRead != null ? lastRead : CompletableFuture.<Block>completedFuture(null);
+      lastRead = previous.thenApplyAsync(p -> readAheadBlock(p, next), executor);
+      readAhead.add(lastRead.thenApplyAsync(this::decompressAheadBlock, executor));
+    }
+
+    final Block block = join(readAhead.poll());
+    if (block.blockSize == 0) {
+      // nothing was read after the end mark, the next frame is read by this thread
+      freeBlocks.add(block);
+      while (!readAhead.isEmpty()) {
+        freeBlocks.add(join(readAhead.poll()));
+      }
+      lastRead = null;
+      endOfFrame(block.hash);
+      return;
+    }
+    currentBlock = block;
+    setBlock(block.data, 0, block.len);
+  }
+
+  /**
+   * Reads the block which follows <code>previous</code> into <code>block</code>.
+   */
+  private Block readAheadBlock(Block previous, Block block) {
+    if (previous != null && previous.blockSize <= 0) {
+      block.blockSize = -1;
+      return block;
+    }
+    try {
+      int blockSize = readInt(in);
+      block.compressed = (blockSize & LZ4FrameOutputStream.LZ4_FRAME_INCOMPRESSIBLE_MASK) == 0;
+      blockSize &= ~LZ4FrameOutputStream.LZ4_FRAME_INCOMPRESSIBLE_MASK;
+      block.blockSize = blockSize;
+      if (blockSize == 0) {
+        if (frameInfo.isEnabled(LZ4FrameOutputStream.FLG.Bits.CONTENT_CHECKSUM)) {
+          block.hash = readInt(in);
+        }
+        return block;
+      }
+      if (blockSize > maxBlockSize) {
+        throw new IOException(String.format(Locale.ROOT, "Block size %s exceeded max: %s", blockSize, maxBlockSize));
       }
+      readFully(block.data, readAheadOffset(block), blockSize);
+      if (frameInfo.isEnabled(LZ4FrameOutputStream.FLG.Bits.BLOCK_CHECKSUM)) {
+        block.hash = readInt(in);
+      }
+      return block;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private int readAheadOffset(Block block) {
+    return block.compressed ? maxBlockSize + LZ4SafeDecompressor.inPlaceMargin(block.blockSize) - block.blockSize : 0;
+  }
+
+  /**
+   * Verifies and decompresses a block returned by {@link #readAheadBlock(Block, Block)}.
+   */
+  private Block decompressAheadBlock(Block block) {
+    if (block.blockSize <= 0) {
+      return block;
+    }
+    final int readOffset = readAheadOffset(block);
+    if (frameInfo.isEnabled(LZ4FrameOutputStream.FLG.Bits.BLOCK_CHECKSUM)
+        && block.hash != checksum.hash(block.data, readOffset, block.blockSize, 0)) {
+      throw new UncheckedIOException(new IOException(BLOCK_HASH_MISMATCH));
+    }
+    if (block.compressed) {
+      block.len = decompressor.decompressInPlace(block.data, 0, readOffset + block.blockSize, block.blockSize);
     } else {
-      currentBufferSize = blockSize;
+      block.len = block.blockSize;
     }
-    if (frameInfo.isEnabled(LZ4FrameOutputStream.FLG.Bits.CONTENT_CHECKSUM)) {
-      frameInfo.updateStreamHash(rawBuffer, 0, currentBufferSize);
+    return block;
+  }
+
+  private static Block join(CompletableFuture<Block> future) throws IOException {
+    try {
+      return future.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof UncheckedIOException) {
+        throw ((UncheckedIOException) e.getCause()).getCause();
+      }
+      throw new IOException(e.getCause());
     }
-    totalContentSize += currentBufferSize;
-    buffer.limit(currentBufferSize);
-    buffer.rewind();
   }
 
   @Override
@@ -327,25 +597,40 @@ public class LZ4FrameInputStream extends FilterInputStream {
     return (int)buffer.get() & 0xFF;
   }
 
+  /**
+   * Reads up to <code>len</code> bytes of decompressed data. Blocks are read
+   * until <code>len</code> bytes are read, as long as the next block can be
+   * read without blocking, and blocks which fit in the remaining part of
+   * <code>b</code> are decompressed there directly.
+   */
   @Override
   public int read(byte[] b, int off, int len) throws IOException {
     if ((off < 0) || (len < 0) || (off + len > b.length)) {
       throw new IndexOutOfBoundsException();
     }
-    while (!firstFrameHeaderRead || buffer.remaining() == 0) {
-      if (!firstFrameHeaderRead || frameInfo.isFinished()) {
+    if (len == 0) {
+      return 0;
+    }
+    int read = 0;
+    while (read < len) {
+      if (firstFrameHeaderRead && buffer.hasRemaining()) {
+        final int n = Math.min(len - read, buffer.remaining());
+        buffer.get(b, off + read, n);
+        read += n;
+      } else if (read > 0 && !nextBlockAvailable()) {
+        break;
+      } else if (!firstFrameHeaderRead || frameInfo.isFinished()) {
         if (firstFrameHeaderRead && readSingleFrame) {
-          return -1;
+          break;
         }
 	if (!nextFrameInfo()) {
-	  return -1;
+	  break;
 	}
+      } else {
+        read += readBlock(b, off + read, len - read);
       }
-      readBlock();
     }
-    len = Math.min(len, buffer.remaining());
-    buffer.get(b, off, len);
-    return len;
+    return read == 0 ? -1 : read;
   }
 
   @Override
@@ -376,6 +661,15 @@ public class LZ4FrameInputStream extends FilterInputStream {
 
   @Override
   public void close() throws IOException {
+    if (lastRead != null) {
+      // wait for the block which may be reading the underlying stream
+      try {
+        lastRead.join();
+      } catch (CompletionException e) {
+        // the stream is closed anyway
+      }
+      lastRead = null;
+    }
     super.close();
   }
 
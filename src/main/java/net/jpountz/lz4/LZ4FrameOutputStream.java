@@ -25,15 +25,17 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.Arrays;
 import java.util.BitSet;
 import java.util.Locale;
 
 /**
  * Implementation of the v1.5.1 LZ4 Frame format. This class is NOT thread safe.
  * <p>
+ * Blocks are independent unless {@link FLG.Bits#BLOCK_INDEPENDENCE} is omitted,
+ * in which case every block may reference the 64 KB of data which precede it.
+ * This improves the compression ratio, especially with small blocks.
+ * <p>
  * Not Supported:<ul>
- * <li>Dependent blocks</li>
  * <li>Legacy streams</li>
  * <li>Multiple frames (one LZ4FrameOutputStream is one frame)</li>
  * </ul>
@@ -80,12 +82,14 @@ public class LZ4FrameOutputStream extends FilterOutputStream {
   }
 
   private final LZ4Compressor compressor;
+  private final LZ4StreamEncoder encoder; // null if blocks are independent
   private final XXHash32 checksum;
   private final ByteBuffer buffer; // Buffer for uncompressed input data
   private final byte[] compressedBuffer; // Only allocated once so it can be reused
   private final int maxBlockSize;
   private final long knownSize;
   private final ByteBuffer intLEBuffer = ByteBuffer.allocate(INTEGER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+  private final LZ4FrameSeekTable seekTable; // null if no seek table is written
 
   private FrameInfo frameInfo = null;
 
@@ -131,6 +135,28 @@ public class LZ4FrameOutputStream extends FilterOutputStream {
    */
   public LZ4FrameOutputStream(OutputStream out, BLOCKSIZE blockSize, long knownSize,
                               LZ4Compressor compressor, XXHash32 checksum, FLG.Bits... bits) throws IOException {
+    this(out, blockSize, knownSize, compressor, checksum, false, bits);
+  }
+
+  /**
+   * Creates a new {@link OutputStream} that will compress data using the specified instances of {@link LZ4Compressor} and {@link XXHash32},
+   * and optionally append a seek table to the frame.
+   * <p>
+   * The seek table is written in a skippable frame after the frame, so that it is ignored by other readers, and lists
+   * the compressed and decompressed lengths of blocks so that {@link LZ4SeekableFrameReader} can decompress any range of
+   * the data by only reading the blocks which cover it. It requires {@link FLG.Bits#BLOCK_INDEPENDENCE}.
+   *
+   * @param out the output stream to compress
+   * @param blockSize the BLOCKSIZE to use
+   * @param knownSize the size of the uncompressed data. A value less than zero means unknown.
+   * @param compressor the {@link LZ4Compressor} instance to use to compress data
+   * @param checksum the {@link XXHash32} instance to use to check data for integrity
+   * @param seekTable whether to write a seek table after the frame
+   * @param bits a set of features to use
+   * @throws IOException if an I/O error occurs
+   */
+  public LZ4FrameOutputStream(OutputStream out, BLOCKSIZE blockSize, long knownSize,
+                              LZ4Compressor compressor, XXHash32 checksum, boolean seekTable, FLG.Bits... bits) throws IOException {
     super(out);
     this.compressor = compressor;
     this.checksum = checksum;
@@ -138,6 +164,11 @@ public class LZ4FrameOutputStream extends FilterOutputStream {
     maxBlockSize = frameInfo.getBD().getBlockMaximumSize();
     buffer = ByteBuffer.allocate(maxBlockSize).order(ByteOrder.LITTLE_ENDIAN);
     compressedBuffer = new byte[this.compressor.maxCompressedLength(maxBlockSize)];
+    encoder = frameInfo.isEnabled(FLG.Bits.BLOCK_INDEPENDENCE) ? null : new LZ4StreamEncoder(compressor, maxBlockSize);
+    if (seekTable && encoder != null) {
+      throw new IllegalArgumentException("Blocks must be independent in order to write a seek table");
+    }
+    this.seekTable = seekTable ? new LZ4FrameSeekTable() : null;
     if (frameInfo.getFLG().isEnabled(FLG.Bits.CONTENT_SIZE) && knownSize < 0) {
       throw new IllegalArgumentException("Known size must be greater than zero in order to use the known size feature");
     }
@@ -176,6 +207,19 @@ public class LZ4FrameOutputStream extends FilterOutputStream {
    * @throws IOException
    */
   private void writeHeader() throws IOException {
+    writeHeader(out, frameInfo, knownSize, checksum);
+  }
+
+  static void writeHeader(OutputStream out, FrameInfo frameInfo, long knownSize, XXHash32 checksum) throws IOException {
+    final ByteBuffer headerBuffer = header(frameInfo, knownSize, checksum);
+    out.write(headerBuffer.array(), 0, headerBuffer.limit());
+  }
+
+  /**
+   * Returns the frame descriptor, between the position and the limit of the
+   * returned buffer.
+   */
+  static ByteBuffer header(FrameInfo frameInfo, long knownSize, XXHash32 checksum) {
     final ByteBuffer headerBuffer = ByteBuffer.allocate(LZ4_MAX_HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
     headerBuffer.putInt(MAGIC);
     headerBuffer.put(frameInfo.getFLG().toByte());
@@ -186,8 +230,8 @@ public class LZ4FrameOutputStream extends FilterOutputStream {
     // compute checksum on all descriptor fields
     final int hash = (checksum.hash(headerBuffer.array(), INTEGER_BYTES, headerBuffer.position() - INTEGER_BYTES, 0) >> 8) & 0xFF;
     headerBuffer.put((byte) hash);
-    // write out frame descriptor
-    out.write(headerBuffer.array(), 0, headerBuffer.position());
+    headerBuffer.flip();
+    return headerBuffer;
   }
 
   /**
@@ -200,43 +244,62 @@ public class LZ4FrameOutputStream extends FilterOutputStream {
     if (buffer.position() == 0) {
       return;
     }
-    // Make sure there's no stale data
-    Arrays.fill(compressedBuffer, (byte) 0);
+    writeBlock(buffer.array(), 0, buffer.position());
+    buffer.rewind();
+  }
 
+  /**
+   * Same as {@link #writeBlock()} but compresses the given data directly, so that a full block of the caller's array
+   * does not need to be copied to the buffer first.
+   *
+   * @throws IOException
+   */
+  private void writeBlock(byte[] src, int off, int len) throws IOException {
     if (frameInfo.isEnabled(FLG.Bits.CONTENT_CHECKSUM)) {
-      frameInfo.updateStreamHash(buffer.array(), 0, buffer.position());
+      frameInfo.updateStreamHash(src, off, len);
     }
 
-    int compressedLength = compressor.compress(buffer.array(), 0, buffer.position(), compressedBuffer, 0);
+    int compressedLength;
+    if (encoder == null) {
+      // give up as soon as the block does not compress, it is stored as is
+      compressedLength = compressor.tryCompress(src, off, len, compressedBuffer, 0, len - 1);
+    } else {
+      compressedLength = encoder.compress(src, off, len, compressedBuffer, 0, compressedBuffer.length);
+    }
     final byte[] bufferToWrite;
+    final int bufferOff;
     final int compressMethod;
 
     // Store block uncompressed if compressed length is greater (incompressible)
-    if (compressedLength >= buffer.position()) {
-      compressedLength = buffer.position();
-      bufferToWrite = Arrays.copyOf(buffer.array(), compressedLength);
+    if (compressedLength == 0 || compressedLength >= len) {
+      compressedLength = len;
+      bufferToWrite = src;
+      bufferOff = off;
       compressMethod = LZ4_FRAME_INCOMPRESSIBLE_MASK;
     } else {
       bufferToWrite = compressedBuffer;
+      bufferOff = 0;
       compressMethod = 0;
     }
 
     // Write content
     intLEBuffer.putInt(0, compressedLength | compressMethod);
     out.write(intLEBuffer.array());
-    out.write(bufferToWrite, 0, compressedLength);
+    out.write(bufferToWrite, bufferOff, compressedLength);
 
     // Calculate and write block checksum
     if (frameInfo.isEnabled(FLG.Bits.BLOCK_CHECKSUM)) {
-      intLEBuffer.putInt(0, checksum.hash(bufferToWrite, 0, compressedLength, 0));
+      intLEBuffer.putInt(0, checksum.hash(bufferToWrite, bufferOff, compressedLength, 0));
       out.write(intLEBuffer.array());
     }
-    buffer.rewind();
+    if (seekTable != null) {
+      seekTable.add(INTEGER_BYTES + compressedLength + (frameInfo.isEnabled(FLG.Bits.BLOCK_CHECKSUM) ? INTEGER_BYTES : 0), len);
+    }
   }
 
   /**
    * Similar to the {@link #writeBlock()} method. Writes a 0-length block (without block checksum) to signal the end
-   * of the block stream.
+   * of the block stream, followed by the seek table if enabled.
    *
    * @throws IOException
    */
@@ -247,6 +310,9 @@ public class LZ4FrameOutputStream extends FilterOutputStream {
       intLEBuffer.putInt(0, frameInfo.currentStreamHash());
       out.write(intLEBuffer.array());
     }
+    if (seekTable != null) {
+      seekTable.writeTo(out);
+    }
     frameInfo.finish();
   }
 
@@ -268,6 +334,13 @@ public class LZ4FrameOutputStream extends FilterOutputStream {
 
     // while b will fill the buffer
     while (len > buffer.remaining()) {
+      if (buffer.position() == 0) {
+        // a whole block is available, compress it without copying it
+        writeBlock(b, off, maxBlockSize);
+        off += maxBlockSize;
+        len -= maxBlockSize;
+        continue;
+      }
       int sizeWritten = buffer.remaining();
       // fill remaining space in buffer
       buffer.put(b, off, sizeWritten);
@@ -306,7 +379,7 @@ public class LZ4FrameOutputStream extends FilterOutputStream {
   }
 
   public static class FLG {
-    private static final int DEFAULT_VERSION = 1;
+    static final int DEFAULT_VERSION = 1;
 
     private final BitSet bitSet;
     private final int version;
@@ -348,7 +421,9 @@ public class LZ4FrameOutputStream extends FilterOutputStream {
     }
 
     public byte toByte() {
-      return (byte)(bitSet.toByteArray()[0] | ((version & 3) << 6));
+      // the array is empty if no bit is set, e.g. for linked blocks without checksums
+      final byte[] bits = bitSet.toByteArray();
+      return (byte)((bits.length == 0 ? 0 : bits[0]) | ((version & 3) << 6));
     }
 
     private void validate() {
@@ -358,9 +433,6 @@ public class LZ4FrameOutputStream extends FilterOutputStream {
       if (bitSet.get(Bits.RESERVED_1.position)) {
         throw new RuntimeException("Reserved1 field must be 0");
       }
-      if (!bitSet.get(Bits.BLOCK_INDEPENDENCE.position)) {
-        throw new RuntimeException("Dependent block stream is unsupported (BLOCK_INDEPENDENCE must be set)");
-      }
       if (version != DEFAULT_VERSION) {
         throw new RuntimeException(String.format(Locale.ROOT, "Version %d is unsupported", version));
       }
@@ -380,7 +452,7 @@ public class LZ4FrameOutputStream extends FilterOutputStream {
 
     private final BLOCKSIZE blockSizeValue;
 
-    private BD(BLOCKSIZE blockSizeValue) {
+    BD(BLOCKSIZE blockSizeValue) {
       this.blockSizeValue = blockSizeValue;
     }
 
@@ -404,9 +476,9 @@ public class LZ4FrameOutputStream extends FilterOutputStream {
   }
 
   static class FrameInfo {
-    private final FLG flg;
-    private final BD bd;
-    private final StreamingXXHash32 streamHash;
+    private FLG flg;
+    private BD bd;
+    private StreamingXXHash32 streamHash;
     private boolean finished = false;
 
     public FrameInfo(FLG flg, BD bd) {
@@ -415,6 +487,22 @@ public class LZ4FrameOutputStream extends FilterOutputStream {
       this.streamHash = flg.isEnabled(FLG.Bits.CONTENT_CHECKSUM) ? XXHashFactory.fastestInstance().newStreamingHash32(0) : null;
     }
 
+    /**
+     * Makes this instance describe a new frame. The stream hash of a previous frame is reset rather than reallocated.
+     */
+    void reset(FLG flg, BD bd) {
+      this.flg = flg;
+      this.bd = bd;
+      if (flg.isEnabled(FLG.Bits.CONTENT_CHECKSUM)) {
+        if (streamHash == null) {
+          streamHash = XXHashFactory.fastestInstance().newStreamingHash32(0);
+        } else {
+          streamHash.reset();
+        }
+      }
+      finished = false;
+    }
+
     public boolean isEnabled(FLG.Bits bit) {
       return flg.isEnabled(bit);
     }
@@ -431,6 +519,10 @@ public class LZ4FrameOutputStream extends FilterOutputStream {
       this.streamHash.update(buff, off, len);
     }
 
+    public void updateStreamHash(ByteBuffer buff, int off, int len) {
+      this.streamHash.update(buff, off, len);
+    }
+
     public int currentStreamHash() {
       return this.streamHash.getValue();
     }
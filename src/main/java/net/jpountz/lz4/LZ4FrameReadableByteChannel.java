@@ -0,0 +1,334 @@
+package net.jpountz.lz4;
+
+/*
+ * Copyright 2020 Adrien Grand and the lz4-java contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Locale;
+
+import net.jpountz.lz4.LZ4FrameOutputStream.BD;
+import net.jpountz.lz4.LZ4FrameOutputStream.FLG;
+import net.jpountz.lz4.LZ4FrameOutputStream.FrameInfo;
+import net.jpountz.xxhash.XXHash32;
+import net.jpountz.xxhash.XXHashFactory;
+
+/**
+ * Same as {@link LZ4FrameInputStream} but as a {@link ReadableByteChannel}.
+ * This class is NOT thread safe.
+ * <p>
+ * Independent blocks are read and decompressed in direct {@link ByteBuffer}s,
+ * or straight into the destination buffer of {@link #read(ByteBuffer)} when
+ * it has room for a whole block, so that data does not go through the heap.
+ * Linked blocks are decompressed on the heap by a {@link LZ4StreamDecoder}.
+ * The underlying channel must be in blocking mode.
+ *
+ * @see LZ4FrameWritableByteChannel
+ */
+public class LZ4FrameReadableByteChannel implements ReadableByteChannel {
+
+  private final ReadableByteChannel in;
+  private final LZ4SafeDecompressor decompressor;
+  private final XXHash32 checksum;
+  private final boolean readSingleFrame;
+  private final ByteBuffer headerBuffer = ByteBuffer.allocate(LZ4FrameOutputStream.LZ4_MAX_HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+  private final ByteBuffer intBuffer = ByteBuffer.allocateDirect(LZ4FrameOutputStream.INTEGER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+  private ByteBuffer compressedBuffer = null; // direct, holds the current block
+  private ByteBuffer decompressedBuffer = null; // direct, holds independent blocks which are not read in place
+  private ByteBuffer buffer = null; // the decompressed data which has not been read yet
+  private LZ4StreamDecoder decoder = null; // null if blocks are independent
+  private int maxBlockSize = -1;
+  private long expectedContentSize = -1L;
+  private long totalContentSize = 0L;
+  private boolean firstFrameHeaderRead = false;
+  private boolean open = true;
+
+  private FrameInfo frameInfo = null;
+
+  /**
+   * Creates a new {@link ReadableByteChannel} that will decompress all the
+   * concatenated frames of <code>in</code> using the fastest instances of
+   * {@link LZ4SafeDecompressor} and {@link XXHash32}.
+   *
+   * @param in the channel to decompress
+   *
+   * @see #LZ4FrameReadableByteChannel(ReadableByteChannel, LZ4SafeDecompressor, XXHash32, boolean)
+   */
+  public LZ4FrameReadableByteChannel(ReadableByteChannel in) {
+    this(in, LZ4Factory.getInstance().safeDecompressor(), XXHashFactory.fastestInstance().hash32(), false);
+  }
+
+  /**
+   * Creates a new {@link ReadableByteChannel} that will decompress data using
+   * the LZ4 algorithm.
+   *
+   * @param in the channel to decompress
+   * @param decompressor the decompressor to use
+   * @param checksum the hash function to use
+   * @param readSingleFrame whether read is stopped after the first non-skippable frame
+   */
+  public LZ4FrameReadableByteChannel(ReadableByteChannel in, LZ4SafeDecompressor decompressor, XXHash32 checksum, boolean readSingleFrame) {
+    this.in = in;
+    this.decompressor = decompressor;
+    this.checksum = checksum;
+    this.readSingleFrame = readSingleFrame;
+  }
+
+  /**
+   * Fills the remaining bytes of <code>buf</code>.
+   *
+   * @return false if the end of the channel is reached before any byte is read
+   *         and <code>eofAllowed</code> is true
+   */
+  private boolean readFully(ByteBuffer buf, boolean eofAllowed) throws IOException {
+    final int start = buf.position();
+    while (buf.hasRemaining()) {
+      if (in.read(buf) < 0) {
+        if (eofAllowed && buf.position() == start) {
+          return false;
+        }
+        throw new IOException(LZ4FrameInputStream.PREMATURE_EOS);
+      }
+    }
+    return true;
+  }
+
+  private int readInt() throws IOException {
+    intBuffer.clear();
+    readFully(intBuffer, false);
+    return intBuffer.getInt(0);
+  }
+
+  /**
+   * Try and load in the next valid frame info. This will skip over skippable frames.
+   * @return True if a frame was loaded. False if there are no more frames in the channel.
+   */
+  private boolean nextFrameInfo() throws IOException {
+    while (true) {
+      intBuffer.clear();
+      if (!readFully(intBuffer, true)) {
+        return false;
+      }
+      final int magic = intBuffer.getInt(0);
+      if (magic == LZ4FrameOutputStream.MAGIC) {
+        readHeader();
+        return true;
+      } else if ((magic >>> 4) == (LZ4FrameInputStream.MAGIC_SKIPPABLE_BASE >>> 4)) {
+        skippableFrame();
+      } else {
+        throw new IOException(LZ4FrameInputStream.NOT_SUPPORTED);
+      }
+    }
+  }
+
+  private void skippableFrame() throws IOException {
+    long skipSize = readInt() & 0xFFFFFFFFL;
+    final ByteBuffer skipBuffer = ByteBuffer.allocate(1 << 10);
+    while (skipSize > 0) {
+      skipBuffer.clear();
+      skipBuffer.limit((int) Math.min(skipSize, skipBuffer.capacity()));
+      readFully(skipBuffer, false);
+      skipSize -= skipBuffer.limit();
+    }
+  }
+
+  /**
+   * Reads the frame descriptor from the underlying channel.
+   */
+  private void readHeader() throws IOException {
+    headerBuffer.clear().limit(2);
+    readFully(headerBuffer, false);
+    final FLG flg = FLG.fromByte(headerBuffer.get(0));
+    final BD bd = BD.fromByte(headerBuffer.get(1));
+    frameInfo = new FrameInfo(flg, bd);
+
+    final int descriptorLen = flg.isEnabled(FLG.Bits.CONTENT_SIZE) ? 2 + LZ4FrameOutputStream.LONG_BYTES : 2;
+    headerBuffer.limit(descriptorLen + 1);
+    readFully(headerBuffer, false);
+    expectedContentSize = flg.isEnabled(FLG.Bits.CONTENT_SIZE) ? headerBuffer.getLong(2) : -1L;
+    totalContentSize = 0L;
+
+    // check stream descriptor hash
+    final byte hash = (byte) ((checksum.hash(headerBuffer.array(), 0, descriptorLen, 0) >> 8) & 0xFF);
+    if (hash != headerBuffer.get(descriptorLen)) {
+      throw new IOException(LZ4FrameInputStream.DESCRIPTOR_HASH_MISMATCH);
+    }
+
+    maxBlockSize = bd.getBlockMaximumSize();
+    if (compressedBuffer == null || compressedBuffer.capacity() < maxBlockSize) {
+      compressedBuffer = ByteBuffer.allocateDirect(maxBlockSize);
+    }
+    if (flg.isEnabled(FLG.Bits.BLOCK_INDEPENDENCE)) {
+      if (decompressedBuffer == null || decompressedBuffer.capacity() < maxBlockSize) {
+        decompressedBuffer = ByteBuffer.allocateDirect(maxBlockSize);
+      }
+      decoder = null;
+    } else {
+      decoder = new LZ4StreamDecoder(decompressor, maxBlockSize);
+    }
+    buffer = null;
+    firstFrameHeaderRead = true;
+  }
+
+  /**
+   * Reads the next block. Decompressed data goes straight to <code>dst</code>
+   * when it has room for it, otherwise it is made available in
+   * {@link #buffer}.
+   *
+   * @return the number of bytes which have been written to <code>dst</code>
+   */
+  private int readBlock(ByteBuffer dst) throws IOException {
+    int blockSize = readInt();
+    final boolean compressed = (blockSize & LZ4FrameOutputStream.LZ4_FRAME_INCOMPRESSIBLE_MASK) == 0;
+    blockSize &= ~LZ4FrameOutputStream.LZ4_FRAME_INCOMPRESSIBLE_MASK;
+
+    // Check for EndMark
+    if (blockSize == 0) {
+      if (frameInfo.isEnabled(FLG.Bits.CONTENT_CHECKSUM) && readInt() != frameInfo.currentStreamHash()) {
+        throw new IOException("Content checksum mismatch");
+      }
+      if (frameInfo.isEnabled(FLG.Bits.CONTENT_SIZE) && expectedContentSize != totalContentSize) {
+        throw new IOException("Size check mismatch");
+      }
+      frameInfo.finish();
+      return 0;
+    }
+
+    if (blockSize > maxBlockSize) {
+      throw new IOException(String.format(Locale.ROOT, "Block size %s exceeded max: %s", blockSize, maxBlockSize));
+    }
+
+    final boolean direct = decoder == null && dst.remaining() >= (compressed ? maxBlockSize : blockSize);
+    final ByteBuffer content;
+    if (!compressed && decoder == null) {
+      // uncompressed data is read where it is going to be consumed
+      content = direct ? dst.duplicate() : decompressedBuffer;
+      if (!direct) {
+        content.clear();
+      }
+    } else {
+      content = compressedBuffer;
+      content.clear();
+    }
+    final int contentOff = content.position();
+    content.limit(contentOff + blockSize);
+    readFully(content, false);
+
+    // verify block checksum
+    if (frameInfo.isEnabled(FLG.Bits.BLOCK_CHECKSUM) && readInt() != checksum.hash(content, contentOff, blockSize, 0)) {
+      throw new IOException(LZ4FrameInputStream.BLOCK_HASH_MISMATCH);
+    }
+
+    final ByteBuffer blockBuffer;
+    final int blockOffset;
+    final int len;
+    try {
+      if (decoder != null) {
+        // linked blocks are decompressed on the heap by the decoder
+        final byte[] tmp = new byte[blockSize];
+        compressedBuffer.flip();
+        compressedBuffer.get(tmp, 0, blockSize);
+        if (compressed) {
+          len = decoder.decompress(tmp, 0, blockSize);
+        } else {
+          decoder.append(tmp, 0, blockSize);
+          len = blockSize;
+        }
+        blockBuffer = ByteBuffer.wrap(decoder.buffer());
+        blockOffset = decoder.position() - len;
+      } else if (!compressed) {
+        blockBuffer = direct ? dst : decompressedBuffer;
+        blockOffset = contentOff;
+        len = blockSize;
+      } else if (direct) {
+        blockBuffer = dst;
+        blockOffset = dst.position();
+        len = decompressor.decompress(compressedBuffer, 0, blockSize, dst, blockOffset, maxBlockSize);
+      } else {
+        blockBuffer = decompressedBuffer;
+        blockOffset = 0;
+        // the limit may still be the end of the previous block
+        decompressedBuffer.clear();
+        len = decompressor.decompress(compressedBuffer, 0, blockSize, decompressedBuffer, 0, maxBlockSize);
+      }
+    } catch (LZ4Exception e) {
+      throw new IOException(e);
+    }
+    if (frameInfo.isEnabled(FLG.Bits.CONTENT_CHECKSUM)) {
+      frameInfo.updateStreamHash(blockBuffer, blockOffset, len);
+    }
+    totalContentSize += len;
+
+    if (blockBuffer == dst) {
+      dst.position(blockOffset + len);
+      return len;
+    }
+    buffer = blockBuffer;
+    buffer.limit(blockOffset + len);
+    buffer.position(blockOffset);
+    return 0;
+  }
+
+  @Override
+  public int read(ByteBuffer dst) throws IOException {
+    if (!open) {
+      throw new ClosedChannelException();
+    }
+    if (!dst.hasRemaining()) {
+      return 0;
+    }
+    while (buffer == null || !buffer.hasRemaining()) {
+      if (!firstFrameHeaderRead || frameInfo.isFinished()) {
+        if (firstFrameHeaderRead && readSingleFrame) {
+          return -1;
+        }
+        if (!nextFrameInfo()) {
+          return -1;
+        }
+      }
+      final int len = readBlock(dst);
+      if (len > 0) {
+        return len;
+      }
+    }
+    final int len = Math.min(dst.remaining(), buffer.remaining());
+    final ByteBuffer slice = buffer.duplicate();
+    slice.limit(slice.position() + len);
+    dst.put(slice);
+    buffer.position(buffer.position() + len);
+    return len;
+  }
+
+  @Override
+  public boolean isOpen() {
+    return open;
+  }
+
+  @Override
+  public void close() throws IOException {
+    open = false;
+    in.close();
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + "(in=" + in + ", decompressor=" + decompressor + ")";
+  }
+
+}
@@ -0,0 +1,125 @@
+package net.jpountz.lz4;
+
+/*
+ * Copyright 2020 Adrien Grand and the lz4-java contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SeekableByteChannel;
+import java.util.Arrays;
+
+/**
+ * The seek table of a frame, which is written in a skippable frame right
+ * after the frame so that readers which do not know about it ignore it.
+ * <p>
+ * The layout is the one of the zstd seekable format, except that entries
+ * describe blocks instead of frames: the skippable frame is made of
+ * <code>n</code> entries with the compressed length of a block, which
+ * includes its length and optional checksum, and its decompressed length,
+ * followed by a footer with <code>n</code>, a descriptor byte, which is
+ * always 0, and {@link #FOOTER_MAGIC}. All numbers are 32-bit little-endian
+ * integers.
+ */
+final class LZ4FrameSeekTable {
+
+  static final int MAGIC = 0x184D2A5E;
+  static final int FOOTER_MAGIC = 0x8F92EAB1;
+  static final int ENTRY_LENGTH = 2 * LZ4FrameOutputStream.INTEGER_BYTES;
+  static final int FOOTER_LENGTH = 2 * LZ4FrameOutputStream.INTEGER_BYTES + 1;
+
+  private int[] entries = new int[32];
+  private int numBlocks = 0;
+
+  /**
+   * Adds a block to the table.
+   */
+  void add(int compressedLength, int decompressedLength) {
+    if (entries.length < 2 * (numBlocks + 1)) {
+      entries = Arrays.copyOf(entries, entries.length << 1);
+    }
+    entries[2 * numBlocks] = compressedLength;
+    entries[2 * numBlocks + 1] = decompressedLength;
+    ++numBlocks;
+  }
+
+  /**
+   * Writes the table as a skippable frame.
+   */
+  void writeTo(OutputStream out) throws IOException {
+    final int frameLength = numBlocks * ENTRY_LENGTH + FOOTER_LENGTH;
+    final ByteBuffer buf = ByteBuffer.allocate(2 * LZ4FrameOutputStream.INTEGER_BYTES + frameLength).order(ByteOrder.LITTLE_ENDIAN);
+    buf.putInt(MAGIC);
+    buf.putInt(frameLength);
+    for (int i = 0; i < 2 * numBlocks; ++i) {
+      buf.putInt(entries[i]);
+    }
+    buf.putInt(numBlocks);
+    buf.put((byte) 0);
+    buf.putInt(FOOTER_MAGIC);
+    out.write(buf.array(), 0, buf.position());
+  }
+
+  /**
+   * Reads the table which ends at the end of <code>channel</code>, and
+   * returns the compressed then decompressed lengths of its blocks.
+   */
+  static int[] read(SeekableByteChannel channel) throws IOException {
+    final long size = channel.size();
+    if (size < 2 * LZ4FrameOutputStream.INTEGER_BYTES + FOOTER_LENGTH) {
+      throw new IOException("No seek table");
+    }
+    final ByteBuffer footer = ByteBuffer.allocate(FOOTER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+    readFully(channel, footer, size - FOOTER_LENGTH);
+    final int numBlocks = footer.getInt(0);
+    if (footer.getInt(FOOTER_LENGTH - LZ4FrameOutputStream.INTEGER_BYTES) != FOOTER_MAGIC || footer.get(LZ4FrameOutputStream.INTEGER_BYTES) != 0
+        || numBlocks < 0 || numBlocks > (size - FOOTER_LENGTH) / ENTRY_LENGTH) {
+      throw new IOException("No seek table");
+    }
+    final int frameLength = numBlocks * ENTRY_LENGTH + FOOTER_LENGTH;
+    final ByteBuffer table = ByteBuffer.allocate(2 * LZ4FrameOutputStream.INTEGER_BYTES + numBlocks * ENTRY_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+    readFully(channel, table, size - frameLength - 2 * LZ4FrameOutputStream.INTEGER_BYTES);
+    if (table.getInt(0) != MAGIC || table.getInt(LZ4FrameOutputStream.INTEGER_BYTES) != frameLength) {
+      throw new IOException("Seek table corrupted");
+    }
+    final int[] entries = new int[2 * numBlocks];
+    table.position(2 * LZ4FrameOutputStream.INTEGER_BYTES);
+    table.asIntBuffer().get(entries);
+    return entries;
+  }
+
+  /**
+   * Returns the length of the table of <code>numBlocks</code> blocks, including
+   * the header of its skippable frame.
+   */
+  static long length(int numBlocks) {
+    return 2 * LZ4FrameOutputStream.INTEGER_BYTES + (long) numBlocks * ENTRY_LENGTH + FOOTER_LENGTH;
+  }
+
+  static void readFully(SeekableByteChannel channel, ByteBuffer buf, long position) throws IOException {
+    if (position < 0) {
+      throw new IOException(LZ4FrameInputStream.PREMATURE_EOS);
+    }
+    channel.position(position);
+    while (buf.hasRemaining()) {
+      if (channel.read(buf) < 0) {
+        throw new IOException(LZ4FrameInputStream.PREMATURE_EOS);
+      }
+    }
+  }
+
+}
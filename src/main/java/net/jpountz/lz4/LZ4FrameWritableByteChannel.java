@@ -0,0 +1,254 @@
+package net.jpountz.lz4;
+
+/*
+ * Copyright 2020 Adrien Grand and the lz4-java contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+import net.jpountz.lz4.LZ4FrameOutputStream.BD;
+import net.jpountz.lz4.LZ4FrameOutputStream.BLOCKSIZE;
+import net.jpountz.lz4.LZ4FrameOutputStream.FLG;
+import net.jpountz.lz4.LZ4FrameOutputStream.FrameInfo;
+import net.jpountz.xxhash.XXHash32;
+import net.jpountz.xxhash.XXHashFactory;
+
+/**
+ * Same as {@link LZ4FrameOutputStream} but as a {@link WritableByteChannel}.
+ * This class is NOT thread safe.
+ * <p>
+ * Blocks are buffered and compressed in direct {@link ByteBuffer}s, and a
+ * whole block is compressed straight from the source buffer when possible,
+ * so that data does not go through the heap. The length, the content and the
+ * checksum of a block are written at once when the underlying channel is a
+ * {@link GatheringByteChannel}. The underlying channel must be in blocking
+ * mode.
+ * <p>
+ * Blocks must be independent: {@link FLG.Bits#BLOCK_INDEPENDENCE} is required.
+ *
+ * @see LZ4FrameReadableByteChannel
+ */
+public class LZ4FrameWritableByteChannel implements WritableByteChannel {
+
+  private final WritableByteChannel out;
+  private final LZ4Compressor compressor;
+  private final XXHash32 checksum;
+  private final FrameInfo frameInfo;
+  private final int maxBlockSize;
+  private final ByteBuffer buffer; // uncompressed data of the current block
+  private final ByteBuffer compressedBuffer;
+  private final ByteBuffer blockLength = ByteBuffer.allocateDirect(LZ4FrameOutputStream.INTEGER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+  private final ByteBuffer blockChecksum = ByteBuffer.allocateDirect(LZ4FrameOutputStream.INTEGER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+
+  /**
+   * Creates a new {@link WritableByteChannel} that will compress data of
+   * unknown size with the fastest instances of {@link LZ4Compressor} and
+   * {@link XXHash32}.
+   *
+   * @param out the channel to write compressed data to
+   * @param blockSize the BLOCKSIZE to use
+   * @param bits a set of features to use, which must include
+   *        {@link FLG.Bits#BLOCK_INDEPENDENCE}
+   * @throws IOException if an I/O error occurs
+   *
+   * @see #LZ4FrameWritableByteChannel(WritableByteChannel, BLOCKSIZE, long, LZ4Compressor, XXHash32, FLG.Bits...)
+   */
+  public LZ4FrameWritableByteChannel(WritableByteChannel out, BLOCKSIZE blockSize, FLG.Bits... bits) throws IOException {
+    this(out, blockSize, -1L, LZ4Factory.getInstance().fastCompressor(), XXHashFactory.fastestInstance().hash32(), bits);
+  }
+
+  /**
+   * Creates a new {@link WritableByteChannel} that will compress data using
+   * the specified instances of {@link LZ4Compressor} and {@link XXHash32}.
+   *
+   * @param out the channel to write compressed data to
+   * @param blockSize the BLOCKSIZE to use
+   * @param knownSize the size of the uncompressed data. A value less than zero means unknown.
+   * @param compressor the {@link LZ4Compressor} instance to use to compress data
+   * @param checksum the {@link XXHash32} instance to use to check data for integrity
+   * @param bits a set of features to use, which must include
+   *        {@link FLG.Bits#BLOCK_INDEPENDENCE}
+   * @throws IOException if an I/O error occurs
+   */
+  public LZ4FrameWritableByteChannel(WritableByteChannel out, BLOCKSIZE blockSize, long knownSize,
+                                     LZ4Compressor compressor, XXHash32 checksum, FLG.Bits... bits) throws IOException {
+    this.out = out;
+    this.compressor = compressor;
+    this.checksum = checksum;
+    frameInfo = new FrameInfo(new FLG(FLG.DEFAULT_VERSION, bits), new BD(blockSize));
+    if (!frameInfo.isEnabled(FLG.Bits.BLOCK_INDEPENDENCE)) {
+      throw new IllegalArgumentException("Blocks must be independent");
+    }
+    if (frameInfo.isEnabled(FLG.Bits.CONTENT_SIZE) && knownSize < 0) {
+      throw new IllegalArgumentException("Known size must be greater than zero in order to use the known size feature");
+    }
+    maxBlockSize = frameInfo.getBD().getBlockMaximumSize();
+    buffer = ByteBuffer.allocateDirect(maxBlockSize);
+    compressedBuffer = ByteBuffer.allocateDirect(compressor.maxCompressedLength(maxBlockSize));
+    writeFully(LZ4FrameOutputStream.header(frameInfo, knownSize, checksum));
+  }
+
+  /**
+   * Creates a new {@link WritableByteChannel} that will compress data with
+   * 4-MB independent blocks.
+   *
+   * @param out the channel to write compressed data to
+   * @throws IOException if an I/O error occurs
+   *
+   * @see #LZ4FrameWritableByteChannel(WritableByteChannel, BLOCKSIZE, FLG.Bits...)
+   */
+  public LZ4FrameWritableByteChannel(WritableByteChannel out) throws IOException {
+    this(out, BLOCKSIZE.SIZE_4MB, LZ4FrameOutputStream.DEFAULT_FEATURES);
+  }
+
+  /**
+   * Writes all the remaining bytes of the given buffers, with gathering
+   * writes if possible.
+   */
+  private void writeFully(ByteBuffer... buffers) throws IOException {
+    if (out instanceof GatheringByteChannel) {
+      // buffers are consumed in order, the last one is emptied last
+      final ByteBuffer last = buffers[buffers.length - 1];
+      while (last.hasRemaining()) {
+        ((GatheringByteChannel) out).write(buffers);
+      }
+    } else {
+      for (ByteBuffer buf : buffers) {
+        while (buf.hasRemaining()) {
+          out.write(buf);
+        }
+      }
+    }
+  }
+
+  /**
+   * Compresses <code>src[off:off+len]</code> into a block, optionally computes
+   * its checksum, and writes it to the underlying channel.
+   */
+  private void writeBlock(ByteBuffer src, int off, int len) throws IOException {
+    if (frameInfo.isEnabled(FLG.Bits.CONTENT_CHECKSUM)) {
+      frameInfo.updateStreamHash(src, off, len);
+    }
+
+    compressedBuffer.clear();
+    final int compressedLength = compressor.compress(src, off, len, compressedBuffer, 0, compressedBuffer.capacity());
+    final ByteBuffer content;
+    // Store block uncompressed if compressed length is greater (incompressible)
+    if (compressedLength >= len) {
+      content = src.duplicate();
+      content.limit(off + len).position(off);
+      blockLength.putInt(0, len | LZ4FrameOutputStream.LZ4_FRAME_INCOMPRESSIBLE_MASK);
+    } else {
+      content = compressedBuffer;
+      content.limit(compressedLength);
+      blockLength.putInt(0, compressedLength);
+    }
+    blockLength.clear();
+
+    if (frameInfo.isEnabled(FLG.Bits.BLOCK_CHECKSUM)) {
+      blockChecksum.putInt(0, checksum.hash(content, content.position(), content.remaining(), 0));
+      blockChecksum.clear();
+      writeFully(blockLength, content, blockChecksum);
+    } else {
+      writeFully(blockLength, content);
+    }
+  }
+
+  @Override
+  public int write(ByteBuffer src) throws IOException {
+    ensureOpen();
+    final int len = src.remaining();
+    while (src.hasRemaining()) {
+      if (buffer.position() == 0 && src.remaining() >= maxBlockSize) {
+        // a whole block, compress it without copying it
+        writeBlock(src, src.position(), maxBlockSize);
+        src.position(src.position() + maxBlockSize);
+        continue;
+      }
+      final int n = Math.min(buffer.remaining(), src.remaining());
+      final ByteBuffer slice = src.duplicate();
+      slice.limit(slice.position() + n);
+      buffer.put(slice);
+      src.position(src.position() + n);
+      if (!buffer.hasRemaining()) {
+        writeBlock(buffer, 0, buffer.position());
+        buffer.clear();
+      }
+    }
+    return len;
+  }
+
+  /**
+   * Compresses buffered data into a block and writes it to the underlying
+   * channel. Unlike with {@link LZ4FrameOutputStream#flush()}, the
+   * underlying channel is not flushed, since channels have no such
+   * operation.
+   *
+   * @throws IOException if an I/O error occurs
+   */
+  public void flush() throws IOException {
+    ensureOpen();
+    if (buffer.position() > 0) {
+      writeBlock(buffer, 0, buffer.position());
+      buffer.clear();
+    }
+  }
+
+  private void ensureOpen() throws ClosedChannelException {
+    if (frameInfo.isFinished()) {
+      throw new ClosedChannelException();
+    }
+  }
+
+  @Override
+  public boolean isOpen() {
+    return !frameInfo.isFinished();
+  }
+
+  /**
+   * Writes the last block and the end mark of the frame, then closes the
+   * underlying channel.
+   *
+   * @throws IOException if an I/O error occurs
+   */
+  @Override
+  public void close() throws IOException {
+    if (!frameInfo.isFinished()) {
+      flush();
+      blockLength.putInt(0, 0);
+      blockLength.clear();
+      if (frameInfo.isEnabled(FLG.Bits.CONTENT_CHECKSUM)) {
+        blockChecksum.putInt(0, frameInfo.currentStreamHash());
+        blockChecksum.clear();
+        writeFully(blockLength, blockChecksum);
+      } else {
+        writeFully(blockLength);
+      }
+      frameInfo.finish();
+    }
+    out.close();
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + "(out=" + out + ", compressor=" + compressor + ", maxBlockSize=" + maxBlockSize + ")";
+  }
+
+}
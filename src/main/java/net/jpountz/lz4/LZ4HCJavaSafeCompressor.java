@@ -29,21 +29,93 @@ final class LZ4HCJavaSafeCompressor extends LZ4Compressor {
   }
 
 
-  private class HashTable {
+  /**
+   * Hash and chain tables which are kept across calls. Positions are stored as
+   * <code>off + shift</code> and every call gets a range of positions above the
+   * ones of previous calls, so that entries from previous calls resolve to
+   * offsets before <code>start</code>. The hash table is only cleared when
+   * positions would overflow, and the chain table is never read for positions
+   * that have not been inserted by the current call. The tables of a
+   * dictionary are searched, read-only, once the chains end before
+   * <code>start</code>.
+   */
+  static final class HashTable {
     static final int MASK = MAX_DISTANCE - 1;
     int nextToUpdate;
-    private final int base;
+    private int maxAttempts;
+    private int base;
+    private int start; // the first position in these tables, base if there is no dictionary
+    private HashTable dict;
+    private int shift;
+    private int next = MAX_DISTANCE;
     private final int[] hashTable;
     private final short[] chainTable;
 
-    HashTable(int base) {
-      this.base = base;
-      nextToUpdate = base;
+    HashTable() {
       hashTable = new int[HASH_TABLE_SIZE_HC];
-      Arrays.fill(hashTable, -1);
       chainTable = new short[MAX_DISTANCE];
     }
 
+    void reset(int maxAttempts, int base, int len) {
+      if (next > Integer.MAX_VALUE - len) {
+        Arrays.fill(hashTable, 0);
+        next = MAX_DISTANCE;
+      }
+      this.maxAttempts = maxAttempts;
+      this.base = start = base;
+      dict = null;
+      nextToUpdate = base;
+      shift = next - base;
+      next += len;
+    }
+
+    /**
+     * Prepares this table for a window of <code>windowLen</code> bytes which
+     * starts with a dictionary whose positions have been inserted into
+     * <code>dict</code>. Only the positions which follow are inserted into
+     * this table, <code>dict</code> is never modified.
+     */
+    void attach(int maxAttempts, HashTable dict, int windowLen) {
+      reset(maxAttempts, dict.nextToUpdate, windowLen - dict.nextToUpdate);
+      this.dict = dict;
+      base = 0;
+    }
+
+    /**
+     * Prepares this table for a block of a stream which ends at
+     * <code>srcEnd</code> and may reference <code>buf[base:]</code>, the
+     * stream must have been started with <code>reset(maxAttempts, 0, 0)</code>.
+     * Positions inserted by the previous blocks are kept.
+     */
+    void link(int maxAttempts, int base, int srcEnd) {
+      if (shift > Integer.MAX_VALUE - srcEnd) {
+        Arrays.fill(hashTable, 0);
+        shift = MAX_DISTANCE;
+      }
+      this.maxAttempts = maxAttempts;
+      this.base = start = base;
+      dict = null;
+      next = Math.max(next, shift + srcEnd);
+    }
+
+    /**
+     * Offsets of the stream decreased by <code>delta</code>, a multiple of
+     * {@link LZ4Constants#MAX_DISTANCE} so that the chain table, which is
+     * indexed by offsets modulo 64 KB, stays valid.
+     */
+    void slide(int delta) {
+      if (shift > Integer.MAX_VALUE - delta) {
+        Arrays.fill(hashTable, 0);
+        shift = MAX_DISTANCE;
+        next = MAX_DISTANCE;
+      } else {
+        shift += delta;
+      }
+      // positions after a long match may not have been inserted yet, those
+      // which have been slid out of the window are skipped
+      nextToUpdate = Math.max(nextToUpdate - delta, 0);
+    }
+
     private int hashPointer(byte[] bytes, int off) {
       final int v = SafeUtils.readInt(bytes, off);
       return hashPointer(v);
@@ -56,7 +128,7 @@ final class LZ4HCJavaSafeCompressor extends LZ4Compressor {
 
     private int hashPointer(int v) {
       final int h = hashHC(v);
-      return hashTable[h];
+      return hashTable[h] - shift;
     }
 
     private int next(int off) {
@@ -75,13 +147,13 @@ final class LZ4HCJavaSafeCompressor extends LZ4Compressor {
 
     private void addHash(int v, int off) {
       final int h = hashHC(v);
-      int delta = off - hashTable[h];
+      int delta = off - (hashTable[h] - shift);
       assert delta > 0 : delta;
       if (delta >= MAX_DISTANCE) {
         delta = MAX_DISTANCE - 1;
       }
       chainTable[off & MASK] = (short) delta;
-      hashTable[h] = off;
+      hashTable[h] = off + shift;
     }
 
     void insert(int off, byte[] bytes) {
@@ -108,7 +180,7 @@ final class LZ4HCJavaSafeCompressor extends LZ4Compressor {
 
       int ref = hashPointer(buf, off);
 
-      if (ref >= off - 4 && ref <= off && ref >= base) { // potential repetition
+      if (ref >= off - 4 && ref <= off && ref >= start) { // potential repetition
         if (LZ4SafeUtils.readIntEquals(buf, ref, off)) { // confirmed
           delta = off - ref;
           repl = match.len = MIN_MATCH + LZ4SafeUtils.commonBytes(buf, ref + MIN_MATCH, off + MIN_MATCH, matchLimit);
@@ -117,8 +189,9 @@ final class LZ4HCJavaSafeCompressor extends LZ4Compressor {
         ref = next(ref);
       }
 
-      for (int i = 0; i < maxAttempts; ++i) {
-        if (ref < Math.max(base, off - MAX_DISTANCE + 1) || ref > off) {
+      int i = 0;
+      for (; i < maxAttempts; ++i) {
+        if (ref < Math.max(start, off - MAX_DISTANCE + 1) || ref > off) {
           break;
         }
         if (LZ4SafeUtils.readIntEquals(buf, ref, off)) {
@@ -131,6 +204,24 @@ final class LZ4HCJavaSafeCompressor extends LZ4Compressor {
         ref = next(ref);
       }
 
+      if (dict != null) {
+        // go on with the chain of the dictionary, which ends before start
+        ref = dict.hashPointer(buf, off);
+        for (; i < maxAttempts; ++i) {
+          if (ref < Math.max(base, off - MAX_DISTANCE + 1) || ref >= start) {
+            break;
+          }
+          if (LZ4SafeUtils.readIntEquals(buf, ref, off)) {
+            final int matchLen = MIN_MATCH + LZ4SafeUtils.commonBytes(buf, ref + MIN_MATCH, off + MIN_MATCH, matchLimit);
+            if (matchLen > match.len) {
+              match.ref = ref;
+              match.len = matchLen;
+            }
+          }
+          ref = dict.next(ref);
+        }
+      }
+
       if (repl != 0) {
         int ptr = off;
         final int end = off + repl - (MIN_MATCH - 1);
@@ -140,7 +231,7 @@ final class LZ4HCJavaSafeCompressor extends LZ4Compressor {
         }
         do {
           chainTable[ptr & MASK] = (short) delta;
-          hashTable[hashHC(SafeUtils.readInt(buf, ptr))] = ptr;
+          hashTable[hashHC(SafeUtils.readInt(buf, ptr))] = ptr + shift;
           ++ptr;
         } while (ptr < end);
         nextToUpdate = end;
@@ -156,8 +247,9 @@ final class LZ4HCJavaSafeCompressor extends LZ4Compressor {
 
       final int delta = off - startLimit;
       int ref = hashPointer(buf, off);
-      for (int i = 0; i < maxAttempts; ++i) {
-        if (ref < Math.max(base, off - MAX_DISTANCE + 1) || ref > off) {
+      int i = 0;
+      for (; i < maxAttempts; ++i) {
+        if (ref < Math.max(start, off - MAX_DISTANCE + 1) || ref > off) {
           break;
         }
         if (LZ4SafeUtils.readIntEquals(buf, ref, off)) {
@@ -173,6 +265,27 @@ final class LZ4HCJavaSafeCompressor extends LZ4Compressor {
         ref = next(ref);
       }
 
+      if (dict != null) {
+        // go on with the chain of the dictionary, which ends before start
+        ref = dict.hashPointer(buf, off);
+        for (; i < maxAttempts; ++i) {
+          if (ref < Math.max(base, off - MAX_DISTANCE + 1) || ref >= start) {
+            break;
+          }
+          if (LZ4SafeUtils.readIntEquals(buf, ref, off)) {
+            final int matchLenForward = MIN_MATCH + LZ4SafeUtils.commonBytes(buf, ref + MIN_MATCH, off + MIN_MATCH, matchLimit);
+            final int matchLenBackward = LZ4SafeUtils.commonBytesBackward(buf, ref, off, base, startLimit);
+            final int matchLen = matchLenBackward + matchLenForward;
+            if (matchLen > match.len) {
+              match.len = matchLen;
+              match.ref = ref - matchLenBackward;
+              match.start = off - matchLenBackward;
+            }
+          }
+          ref = dict.next(ref);
+        }
+      }
+
       return match.len > minLen;
     }
 
@@ -187,7 +300,7 @@ final class LZ4HCJavaSafeCompressor extends LZ4Compressor {
 
       int ref = hashPointer(buf, off);
 
-      if (ref >= off - 4 && ref <= off && ref >= base) { // potential repetition
+      if (ref >= off - 4 && ref <= off && ref >= start) { // potential repetition
         if (LZ4ByteBufferUtils.readIntEquals(buf, ref, off)) { // confirmed
           delta = off - ref;
           repl = match.len = MIN_MATCH + LZ4ByteBufferUtils.commonBytes(buf, ref + MIN_MATCH, off + MIN_MATCH, matchLimit);
@@ -197,7 +310,7 @@ final class LZ4HCJavaSafeCompressor extends LZ4Compressor {
       }
 
       for (int i = 0; i < maxAttempts; ++i) {
-        if (ref < Math.max(base, off - MAX_DISTANCE + 1) || ref > off) {
+        if (ref < Math.max(start, off - MAX_DISTANCE + 1) || ref > off) {
           break;
         }
         if (LZ4ByteBufferUtils.readIntEquals(buf, ref, off)) {
@@ -219,7 +332,7 @@ final class LZ4HCJavaSafeCompressor extends LZ4Compressor {
         }
         do {
           chainTable[ptr & MASK] = (short) delta;
-          hashTable[hashHC(ByteBufferUtils.readInt(buf, ptr))] = ptr;
+          hashTable[hashHC(ByteBufferUtils.readInt(buf, ptr))] = ptr + shift;
           ++ptr;
         } while (ptr < end);
         nextToUpdate = end;
@@ -236,7 +349,7 @@ final class LZ4HCJavaSafeCompressor extends LZ4Compressor {
       final int delta = off - startLimit;
       int ref = hashPointer(buf, off);
       for (int i = 0; i < maxAttempts; ++i) {
-        if (ref < Math.max(base, off - MAX_DISTANCE + 1) || ref > off) {
+        if (ref < Math.max(start, off - MAX_DISTANCE + 1) || ref > off) {
           break;
         }
         if (LZ4ByteBufferUtils.readIntEquals(buf, ref, off)) {
@@ -259,14 +372,154 @@ final class LZ4HCJavaSafeCompressor extends LZ4Compressor {
   }
 
 
+  static final class State extends LZ4CompressorState {
+    final HashTable hashTable = new HashTable();
+    final Match match0 = new Match();
+    final Match match1 = new Match();
+    final Match match2 = new Match();
+    final Match match3 = new Match();
+  }
+
+  /**
+   * A dictionary along with the hash and chain tables obtained by inserting
+   * its positions, which are searched after the tables of a {@link State}
+   * while compressing. They are only read, so that a dictionary can be shared
+   * by concurrent calls.
+   */
+  static final class Dictionary extends LZ4Dictionary {
+    final HashTable hashTable = new HashTable();
+
+    Dictionary(byte[] dict, int dictOff, int dictLen) {
+      super(dict, dictOff, dictLen);
+      hashTable.reset(0, 0, bytes.length);
+      // the last positions are inserted while compressing, once the bytes which follow are known
+      hashTable.insert(bytes.length - (MIN_MATCH - 1), bytes);
+    }
+  }
+
+  static Dictionary dictionary(LZ4Dictionary dictionary) {
+    if (!(dictionary instanceof Dictionary)) {
+      throw new IllegalArgumentException("dictionary was not loaded by a high compressor: " + dictionary);
+    }
+    return (Dictionary) dictionary;
+  }
+
+  static State state(LZ4CompressorState state) {
+    if (!(state instanceof State)) {
+      throw new IllegalArgumentException("state was not created by a high compressor: " + state);
+    }
+    return (State) state;
+  }
+
+  @Override
+  public LZ4CompressorState newState() {
+    return new State();
+  }
+
+  @Override
+  public LZ4Dictionary loadDictionary(byte[] dict, int dictOff, int dictLen) {
+    return new Dictionary(dict, dictOff, dictLen);
+  }
+
   @Override
   public int compress(byte[] src, int srcOff, int srcLen, byte[] dest, int destOff, int maxDestLen) {
+    return LZ4SafeUtils.checkCompressedLength(compress(src, srcOff, srcLen, dest, destOff, maxDestLen, new State()));
+  }
 
+  @Override
+  public int tryCompress(byte[] src, int srcOff, int srcLen, byte[] dest, int destOff, int maxDestLen) {
+    return Math.max(compress(src, srcOff, srcLen, dest, destOff, maxDestLen, new State()), 0);
+  }
+
+  @Override
+  public int compress(LZ4CompressorState state, LZ4Dictionary dictionary, byte[] src, int srcOff, int srcLen, byte[] dest, int destOff, int maxDestLen) {
+    final State s = state(state);
+    final Dictionary dict = dictionary(dictionary);
     SafeUtils.checkRange(src, srcOff, srcLen);
     SafeUtils.checkRange(dest, destOff, maxDestLen);
 
+    // compress the input right after the dictionary so that matches can point into it
+    final int dictLen = dict.bytes.length;
+    final byte[] window = s.window(dict, srcLen);
+    System.arraycopy(src, srcOff, window, dictLen, srcLen);
+
+    s.hashTable.attach(maxAttempts, dict.hashTable, dictLen + srcLen);
+    return LZ4SafeUtils.checkCompressedLength(compress(s, window, dictLen, srcLen, dest, destOff, destOff + maxDestLen));
+  }
+
+  @Override
+  public int compress(LZ4CompressorState state, byte[] src, int srcOff, int srcLen, byte[] dest, int destOff, int maxDestLen) {
+    return LZ4SafeUtils.checkCompressedLength(compress(src, srcOff, srcLen, dest, destOff, maxDestLen, state(state)));
+  }
+
+  @Override
+  int compressDestSize(byte[] src, int srcOff, int srcLen, byte[] dest, int destOff, int maxDestLen, int[] srcSize) {
+    SafeUtils.checkRange(src, srcOff, srcLen);
+    SafeUtils.checkRange(dest, destOff, maxDestLen);
+
+    final State state = new State();
+    state.hashTable.reset(maxAttempts, srcOff, srcLen);
+    return compress(state, src, srcOff, srcLen, dest, destOff, destOff + maxDestLen, srcSize);
+  }
+
+  @Override
+  void resetStream(LZ4CompressorState state) {
+    state(state).hashTable.reset(maxAttempts, 0, 0);
+  }
+
+  @Override
+  int compressLinked(LZ4CompressorState state, byte[] src, int base, int srcOff, int srcLen, byte[] dest, int destOff, int maxDestLen) {
+    final State s = state(state);
+    SafeUtils.checkRange(src, srcOff, srcLen);
+    SafeUtils.checkRange(dest, destOff, maxDestLen);
+
+    s.hashTable.link(maxAttempts, base, srcOff + srcLen);
+    return LZ4SafeUtils.checkCompressedLength(compress(s, src, srcOff, srcLen, dest, destOff, destOff + maxDestLen));
+  }
+
+  @Override
+  void slideStream(LZ4CompressorState state, int shift) {
+    state(state).hashTable.slide(shift);
+  }
+
+  @Override
+  public int compress(ByteBuffer src, int srcOff, int srcLen, ByteBuffer dest, int destOff, int maxDestLen) {
+    return compress(src, srcOff, srcLen, dest, destOff, maxDestLen, new State());
+  }
+
+  @Override
+  public int compress(LZ4CompressorState state, ByteBuffer src, int srcOff, int srcLen, ByteBuffer dest, int destOff, int maxDestLen) {
+    return compress(src, srcOff, srcLen, dest, destOff, maxDestLen, state(state));
+  }
+
+  private int compress(byte[] src, int srcOff, int srcLen, byte[] dest, int destOff, int maxDestLen, State state) {
+
+    SafeUtils.checkRange(src, srcOff, srcLen);
+    SafeUtils.checkRange(dest, destOff, maxDestLen);
+
+    state.hashTable.reset(maxAttempts, srcOff, srcLen);
+    return compress(state, src, srcOff, srcLen, dest, destOff, destOff + maxDestLen);
+  }
+
+  /**
+   * Compresses <code>src[srcOff:srcOff+srcLen]</code> with the tables of
+   * <code>state</code>, which must have been reset or attached beforehand, and
+   * returns the compressed length, or -1 if <code>dest</code> is too small.
+   */
+  private static int compress(State state, byte[] src, int srcOff, int srcLen, byte[] dest, int destOff, int destEnd) {
+    return compress(state, src, srcOff, srcLen, dest, destOff, destEnd, null);
+  }
+
+  /**
+   * Same as {@link #compress(State, byte[], int, int, byte[], int, int)}
+   * except that, if <code>srcSize</code> is not null, compression stops when
+   * <code>dest</code> is full instead of returning -1 and the number
+   * of source bytes which have been compressed is stored in
+   * <code>srcSize[0]</code>, like liblz4's <code>LZ4_compress_HC_destSize</code>.
+   */
+  private static int compress(State state, byte[] src, int srcOff, int srcLen, byte[] dest, int destOff, int destEnd, int[] srcSize) {
+
     final int srcEnd = srcOff + srcLen;
-    final int destEnd = destOff + maxDestLen;
     final int mfLimit = srcEnd - MF_LIMIT;
     final int matchLimit = srcEnd - LAST_LITERALS;
 
@@ -274,11 +527,11 @@ final class LZ4HCJavaSafeCompressor extends LZ4Compressor {
     int dOff = destOff;
     int anchor = sOff++;
 
-    final HashTable ht = new HashTable(srcOff);
-    final Match match0 = new Match();
-    final Match match1 = new Match();
-    final Match match2 = new Match();
-    final Match match3 = new Match();
+    final HashTable ht = state.hashTable;
+    final Match match0 = state.match0;
+    final Match match1 = state.match1;
+    final Match match2 = state.match2;
+    final Match match3 = state.match3;
 
     main:
     while (sOff < mfLimit) {
@@ -296,7 +549,9 @@ final class LZ4HCJavaSafeCompressor extends LZ4Compressor {
         if (match1.end() >= mfLimit
             || !ht.insertAndFindWiderMatch(src, match1.end() - 2, match1.start + 1, matchLimit, match1.len, match2)) {
           // no better match
-          dOff = LZ4SafeUtils.encodeSequence(src, anchor, match1.start, match1.ref, match1.len, dest, dOff, destEnd);
+          if ((dOff = encodeSequence(src, anchor, match1, dest, dOff, destEnd, srcSize)) < 0) {
+            break main;
+          }
           anchor = sOff = match1.end();
           continue main;
         }
@@ -336,10 +591,14 @@ final class LZ4HCJavaSafeCompressor extends LZ4Compressor {
               match1.len = match2.start - match1.start;
             }
             // encode seq 1
-            dOff = LZ4SafeUtils.encodeSequence(src, anchor, match1.start, match1.ref, match1.len, dest, dOff, destEnd);
+            if ((dOff = encodeSequence(src, anchor, match1, dest, dOff, destEnd, srcSize)) < 0) {
+              break main;
+            }
             anchor = sOff = match1.end();
             // encode seq 2
-            dOff = LZ4SafeUtils.encodeSequence(src, anchor, match2.start, match2.ref, match2.len, dest, dOff, destEnd);
+            if ((dOff = encodeSequence(src, anchor, match2, dest, dOff, destEnd, srcSize)) < 0) {
+              break main;
+            }
             anchor = sOff = match2.end();
             continue main;
           }
@@ -354,7 +613,9 @@ final class LZ4HCJavaSafeCompressor extends LZ4Compressor {
                 }
               }
 
-              dOff = LZ4SafeUtils.encodeSequence(src, anchor, match1.start, match1.ref, match1.len, dest, dOff, destEnd);
+              if ((dOff = encodeSequence(src, anchor, match1, dest, dOff, destEnd, srcSize)) < 0) {
+                break main;
+              }
               anchor = sOff = match1.end();
 
               copyTo(match3, match1);
@@ -383,7 +644,9 @@ final class LZ4HCJavaSafeCompressor extends LZ4Compressor {
             }
           }
 
-          dOff = LZ4SafeUtils.encodeSequence(src, anchor, match1.start, match1.ref, match1.len, dest, dOff, destEnd);
+          if ((dOff = encodeSequence(src, anchor, match1, dest, dOff, destEnd, srcSize)) < 0) {
+            break main;
+          }
           anchor = sOff = match1.end();
 
           copyTo(match2, match1);
@@ -396,21 +659,56 @@ final class LZ4HCJavaSafeCompressor extends LZ4Compressor {
 
     }
 
-    dOff = LZ4SafeUtils.lastLiterals(src, anchor, srcEnd - anchor, dest, dOff, destEnd);
-    return dOff - destOff;
+    if (dOff < 0) {
+      // the last sequence did not fit
+      if (srcSize == null) {
+        return -1;
+      }
+      dOff = ~dOff;
+    }
+    if (srcSize != null) {
+      final int runLen = Math.min(srcEnd - anchor, LZ4SafeUtils.maxLastLiterals(dOff, destEnd));
+      srcSize[0] = anchor + runLen - srcOff;
+      return LZ4SafeUtils.lastLiterals(src, anchor, runLen, dest, dOff, destEnd) - destOff; // always fits
+    }
+    return LZ4SafeUtils.compressedLength(destOff, LZ4SafeUtils.lastLiterals(src, anchor, srcEnd - anchor, dest, dOff, destEnd));
   }
 
+  /**
+   * Encodes <code>match</code> preceded by the literals since
+   * <code>anchor</code> and returns the new offset in <code>dest</code>, or -1
+   * if it does not fit. If <code>srcSize</code> is not null, the match is
+   * shortened so that the last literals still fit and <code>~dOff</code> is
+   * returned if the sequence does not fit at all.
+   */
+  private static int encodeSequence(byte[] src, int anchor, Match match, byte[] dest, int dOff, int destEnd, int[] srcSize) {
+    if (srcSize != null) {
+      final int runLen = match.start - anchor;
+      if (!LZ4SafeUtils.fitsSequence(runLen, dOff, destEnd)) {
+        return ~dOff;
+      }
+      final int offsetEnd = dOff + 1 + runLen + (runLen + 255 - RUN_MASK) / 255 + 2;
+      match.len = Math.min(match.len, LZ4SafeUtils.maxMatchLen(offsetEnd, destEnd));
+    }
+    return LZ4SafeUtils.encodeSequence(src, anchor, match.start, match.ref, match.len, dest, dOff, destEnd);
+  }
 
 
-  @Override
-  public int compress(ByteBuffer src, int srcOff, int srcLen, ByteBuffer dest, int destOff, int maxDestLen) {
+
+  private int compress(ByteBuffer src, int srcOff, int srcLen, ByteBuffer dest, int destOff, int maxDestLen, State state) {
 
     if (src.hasArray() && dest.hasArray()) {
-      return compress(src.array(), srcOff + src.arrayOffset(), srcLen, dest.array(), destOff + dest.arrayOffset(), maxDestLen);
+      return LZ4SafeUtils.checkCompressedLength(compress(src.array(), srcOff + src.arrayOffset(), srcLen, dest.array(), destOff + dest.arrayOffset(), maxDestLen, state));
     }
     src = ByteBufferUtils.inNativeByteOrder(src);
     dest = ByteBufferUtils.inNativeByteOrder(dest);
 
+    if (src.hasArray()) {
+      return compress(src.array(), srcOff + src.arrayOffset(), srcLen, dest, destOff, maxDestLen, state);
+    } else if (dest.hasArray()) {
+      return compress(src, srcOff, srcLen, dest.array(), destOff + dest.arrayOffset(), maxDestLen, state);
+    }
+
     ByteBufferUtils.checkRange(src, srcOff, srcLen);
     ByteBufferUtils.checkRange(dest, destOff, maxDestLen);
 
@@ -423,11 +721,162 @@ final class LZ4HCJavaSafeCompressor extends LZ4Compressor {
     int dOff = destOff;
     int anchor = sOff++;
 
-    final HashTable ht = new HashTable(srcOff);
-    final Match match0 = new Match();
-    final Match match1 = new Match();
-    final Match match2 = new Match();
-    final Match match3 = new Match();
+    final HashTable ht = state.hashTable;
+    ht.reset(maxAttempts, srcOff, srcLen);
+    final Match match0 = state.match0;
+    final Match match1 = state.match1;
+    final Match match2 = state.match2;
+    final Match match3 = state.match3;
+
+    main:
+    while (sOff < mfLimit) {
+      if (!ht.insertAndFindBestMatch(src, sOff, matchLimit, match1)) {
+        ++sOff;
+        continue;
+      }
+
+      // saved, in case we would skip too much
+      copyTo(match1, match0);
+
+      search2:
+      while (true) {
+        assert match1.start >= anchor;
+        if (match1.end() >= mfLimit
+            || !ht.insertAndFindWiderMatch(src, match1.end() - 2, match1.start + 1, matchLimit, match1.len, match2)) {
+          // no better match
+          dOff = LZ4ByteBufferUtils.encodeSequence(src, anchor, match1.start, match1.ref, match1.len, dest, dOff, destEnd);
+          anchor = sOff = match1.end();
+          continue main;
+        }
+
+        if (match0.start < match1.start) {
+          if (match2.start < match1.start + match0.len) { // empirical
+            copyTo(match0, match1);
+          }
+        }
+        assert match2.start > match1.start;
+
+        if (match2.start - match1.start < 3) { // First Match too small : removed
+          copyTo(match2, match1);
+          continue search2;
+        }
+
+        search3:
+        while (true) {
+          if (match2.start - match1.start < OPTIMAL_ML) {
+            int newMatchLen = match1.len;
+            if (newMatchLen > OPTIMAL_ML) {
+              newMatchLen = OPTIMAL_ML;
+            }
+            if (match1.start + newMatchLen > match2.end() - MIN_MATCH) {
+              newMatchLen = match2.start - match1.start + match2.len - MIN_MATCH;
+            }
+            final int correction = newMatchLen - (match2.start - match1.start);
+            if (correction > 0) {
+              match2.fix(correction);
+            }
+          }
+
+          if (match2.start + match2.len >= mfLimit
+              || !ht.insertAndFindWiderMatch(src, match2.end() - 3, match2.start, matchLimit, match2.len, match3)) {
+            // no better match -> 2 sequences to encode
+            if (match2.start < match1.end()) {
+              match1.len = match2.start - match1.start;
+            }
+            // encode seq 1
+            dOff = LZ4ByteBufferUtils.encodeSequence(src, anchor, match1.start, match1.ref, match1.len, dest, dOff, destEnd);
+            anchor = sOff = match1.end();
+            // encode seq 2
+            dOff = LZ4ByteBufferUtils.encodeSequence(src, anchor, match2.start, match2.ref, match2.len, dest, dOff, destEnd);
+            anchor = sOff = match2.end();
+            continue main;
+          }
+
+          if (match3.start < match1.end() + 3) { // Not enough space for match 2 : remove it
+            if (match3.start >= match1.end()) { // // can write Seq1 immediately ==> Seq2 is removed, so Seq3 becomes Seq1
+              if (match2.start < match1.end()) {
+                final int correction = match1.end() - match2.start;
+                match2.fix(correction);
+                if (match2.len < MIN_MATCH) {
+                  copyTo(match3, match2);
+                }
+              }
+
+              dOff = LZ4ByteBufferUtils.encodeSequence(src, anchor, match1.start, match1.ref, match1.len, dest, dOff, destEnd);
+              anchor = sOff = match1.end();
+
+              copyTo(match3, match1);
+              copyTo(match2, match0);
+
+              continue search2;
+            }
+
+            copyTo(match3, match2);
+            continue search3;
+          }
+
+          // OK, now we have 3 ascending matches; let's write at least the first one
+          if (match2.start < match1.end()) {
+            if (match2.start - match1.start < ML_MASK) {
+              if (match1.len > OPTIMAL_ML) {
+                match1.len = OPTIMAL_ML;
+              }
+              if (match1.end() > match2.end() - MIN_MATCH) {
+                match1.len = match2.end() - match1.start - MIN_MATCH;
+              }
+              final int correction = match1.end() - match2.start;
+              match2.fix(correction);
+            } else {
+              match1.len = match2.start - match1.start;
+            }
+          }
+
+          dOff = LZ4ByteBufferUtils.encodeSequence(src, anchor, match1.start, match1.ref, match1.len, dest, dOff, destEnd);
+          anchor = sOff = match1.end();
+
+          copyTo(match2, match1);
+          copyTo(match3, match2);
+
+          continue search3;
+        }
+
+      }
+
+    }
+
+    dOff = LZ4ByteBufferUtils.lastLiterals(src, anchor, srcEnd - anchor, dest, dOff, destEnd);
+    return dOff - destOff;
+  }
+
+  /**
+   * Same as {@link #compress(byte[], int, int, byte[], int, int, State)} for a
+   * heap source and a direct destination: matches are found in the array and
+   * sequences are written straight to the buffer.
+   */
+  private int compress(byte[] src, int srcOff, int srcLen, ByteBuffer dest, int destOff, int maxDestLen, State state) {
+
+    SafeUtils.checkRange(src, srcOff, srcLen);
+    ByteBufferUtils.checkRange(dest, destOff, maxDestLen);
+
+    state.hashTable.reset(maxAttempts, srcOff, srcLen);
+    return compress(state, src, srcOff, srcLen, dest, destOff, destOff + maxDestLen);
+  }
+
+  private static int compress(State state, byte[] src, int srcOff, int srcLen, ByteBuffer dest, int destOff, int destEnd) {
+
+    final int srcEnd = srcOff + srcLen;
+    final int mfLimit = srcEnd - MF_LIMIT;
+    final int matchLimit = srcEnd - LAST_LITERALS;
+
+    int sOff = srcOff;
+    int dOff = destOff;
+    int anchor = sOff++;
+
+    final HashTable ht = state.hashTable;
+    final Match match0 = state.match0;
+    final Match match1 = state.match1;
+    final Match match2 = state.match2;
+    final Match match3 = state.match3;
 
     main:
     while (sOff < mfLimit) {
@@ -549,5 +998,153 @@ final class LZ4HCJavaSafeCompressor extends LZ4Compressor {
     return dOff - destOff;
   }
 
+  /**
+   * Same as {@link #compress(byte[], int, int, byte[], int, int, State)} for a
+   * direct source and a heap destination.
+   */
+  private int compress(ByteBuffer src, int srcOff, int srcLen, byte[] dest, int destOff, int maxDestLen, State state) {
+
+    ByteBufferUtils.checkRange(src, srcOff, srcLen);
+    SafeUtils.checkRange(dest, destOff, maxDestLen);
+
+    state.hashTable.reset(maxAttempts, srcOff, srcLen);
+    return compress(state, src, srcOff, srcLen, dest, destOff, destOff + maxDestLen);
+  }
+
+  private static int compress(State state, ByteBuffer src, int srcOff, int srcLen, byte[] dest, int destOff, int destEnd) {
+
+    final int srcEnd = srcOff + srcLen;
+    final int mfLimit = srcEnd - MF_LIMIT;
+    final int matchLimit = srcEnd - LAST_LITERALS;
+
+    int sOff = srcOff;
+    int dOff = destOff;
+    int anchor = sOff++;
+
+    final HashTable ht = state.hashTable;
+    final Match match0 = state.match0;
+    final Match match1 = state.match1;
+    final Match match2 = state.match2;
+    final Match match3 = state.match3;
+
+    main:
+    while (sOff < mfLimit) {
+      if (!ht.insertAndFindBestMatch(src, sOff, matchLimit, match1)) {
+        ++sOff;
+        continue;
+      }
+
+      // saved, in case we would skip too much
+      copyTo(match1, match0);
+
+      search2:
+      while (true) {
+        assert match1.start >= anchor;
+        if (match1.end() >= mfLimit
+            || !ht.insertAndFindWiderMatch(src, match1.end() - 2, match1.start + 1, matchLimit, match1.len, match2)) {
+          // no better match
+          dOff = LZ4ByteBufferUtils.encodeSequence(src, anchor, match1.start, match1.ref, match1.len, dest, dOff, destEnd);
+          anchor = sOff = match1.end();
+          continue main;
+        }
+
+        if (match0.start < match1.start) {
+          if (match2.start < match1.start + match0.len) { // empirical
+            copyTo(match0, match1);
+          }
+        }
+        assert match2.start > match1.start;
+
+        if (match2.start - match1.start < 3) { // First Match too small : removed
+          copyTo(match2, match1);
+          continue search2;
+        }
+
+        search3:
+        while (true) {
+          if (match2.start - match1.start < OPTIMAL_ML) {
+            int newMatchLen = match1.len;
+            if (newMatchLen > OPTIMAL_ML) {
+              newMatchLen = OPTIMAL_ML;
+            }
+            if (match1.start + newMatchLen > match2.end() - MIN_MATCH) {
+              newMatchLen = match2.start - match1.start + match2.len - MIN_MATCH;
+            }
+            final int correction = newMatchLen - (match2.start - match1.start);
+            if (correction > 0) {
+              match2.fix(correction);
+            }
+          }
+
+          if (match2.start + match2.len >= mfLimit
+              || !ht.insertAndFindWiderMatch(src, match2.end() - 3, match2.start, matchLimit, match2.len, match3)) {
+            // no better match -> 2 sequences to encode
+            if (match2.start < match1.end()) {
+              match1.len = match2.start - match1.start;
+            }
+            // encode seq 1
+            dOff = LZ4ByteBufferUtils.encodeSequence(src, anchor, match1.start, match1.ref, match1.len, dest, dOff, destEnd);
+            anchor = sOff = match1.end();
+            // encode seq 2
+            dOff = LZ4ByteBufferUtils.encodeSequence(src, anchor, match2.start, match2.ref, match2.len, dest, dOff, destEnd);
+            anchor = sOff = match2.end();
+            continue main;
+          }
+
+          if (match3.start < match1.end() + 3) { // Not enough space for match 2 : remove it
+            if (match3.start >= match1.end()) { // // can write Seq1 immediately ==> Seq2 is removed, so Seq3 becomes Seq1
+              if (match2.start < match1.end()) {
+                final int correction = match1.end() - match2.start;
+                match2.fix(correction);
+                if (match2.len < MIN_MATCH) {
+                  copyTo(match3, match2);
+                }
+              }
+
+              dOff = LZ4ByteBufferUtils.encodeSequence(src, anchor, match1.start, match1.ref, match1.len, dest, dOff, destEnd);
+              anchor = sOff = match1.end();
+
+              copyTo(match3, match1);
+              copyTo(match2, match0);
+
+              continue search2;
+            }
+
+            copyTo(match3, match2);
+            continue search3;
+          }
+
+          // OK, now we have 3 ascending matches; let's write at least the first one
+          if (match2.start < match1.end()) {
+            if (match2.start - match1.start < ML_MASK) {
+              if (match1.len > OPTIMAL_ML) {
+                match1.len = OPTIMAL_ML;
+              }
+              if (match1.end() > match2.end() - MIN_MATCH) {
+                match1.len = match2.end() - match1.start - MIN_MATCH;
+              }
+              final int correction = match1.end() - match2.start;
+              match2.fix(correction);
+            } else {
+              match1.len = match2.start - match1.start;
+            }
+          }
+
+          dOff = LZ4ByteBufferUtils.encodeSequence(src, anchor, match1.start, match1.ref, match1.len, dest, dOff, destEnd);
+          anchor = sOff = match1.end();
+
+          copyTo(match2, match1);
+          copyTo(match3, match2);
+
+          continue search3;
+        }
+
+      }
+
+    }
+
+    dOff = LZ4ByteBufferUtils.lastLiterals(src, anchor, srcEnd - anchor, dest, dOff, destEnd);
+    return dOff - destOff;
+  }
 
 }
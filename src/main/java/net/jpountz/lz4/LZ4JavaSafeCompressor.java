@@ -18,8 +18,290 @@ final class LZ4JavaSafeCompressor extends LZ4Compressor {
 
   public static final LZ4Compressor INSTANCE = new LZ4JavaSafeCompressor();
 
+  final int acceleration;
+  final int memoryUsage;
+
+  LZ4JavaSafeCompressor() { this(DEFAULT_ACCELERATION); }
+  LZ4JavaSafeCompressor(int acceleration) { this(acceleration, MEMORY_USAGE); }
+  LZ4JavaSafeCompressor(int acceleration, int memoryUsage) {
+    this.acceleration = acceleration;
+    this.memoryUsage = memoryUsage;
+  }
+
+  /**
+   * Returns the memory usage to use for an input of <code>srcLen</code> bytes:
+   * either the configured one or, in auto mode, the one whose hash table is
+   * about as large as the input.
+   */
+  int memoryUsage(int srcLen) {
+    if (memoryUsage != AUTO_MEMORY_USAGE) {
+      return memoryUsage;
+    }
+    final int log = 32 - Integer.numberOfLeadingZeros(srcLen - 1);
+    return Math.max(MIN_MEMORY_USAGE, Math.min(MAX_MEMORY_USAGE, log));
+  }
+
+  /**
+   * Hash tables which are kept across calls. Rather than clearing tables, every
+   * call gets a range of positions above the ones of previous calls so that
+   * entries from previous calls resolve to offsets before the input. Tables are
+   * only cleared when positions would overflow.
+   */
+  static final class State extends LZ4CompressorState {
+    short[] hashTable64k;
+    int next64k;
+    int[] hashTable;
+    int next;
+    int linkDelta;
+    short[] dictHashTable64k;
+    int[] dictHashTable;
+
+    /**
+     * Returns the position of the first byte of an input of length
+     * <code>srcLen &lt; LZ4_64K_LIMIT</code> in {@link #hashTable64k}, which
+     * is grown to at least <code>1 &lt;&lt; hashLog</code> entries if needed.
+     */
+    int prepare64k(int srcLen, int hashLog) {
+      if (hashTable64k == null || hashTable64k.length < 1 << hashLog) {
+        hashTable64k = new short[1 << hashLog];
+        next64k = 0;
+      } else if (next64k > LZ4_64K_LIMIT - srcLen) {
+        // positions must fit in 16 bits
+        Arrays.fill(hashTable64k, (short) 0);
+        next64k = 0;
+      }
+      final int base = next64k;
+      next64k += srcLen;
+      return base;
+    }
+
+    /**
+     * Returns the position of the first byte of an input of length
+     * <code>srcLen</code> in {@link #hashTable}, which is grown to at least
+     * <code>1 &lt;&lt; hashLog</code> entries if needed.
+     */
+    int prepare(int srcLen, int hashLog) {
+      if (hashTable == null || hashTable.length < 1 << hashLog) {
+        hashTable = new int[1 << hashLog];
+        next = 0;
+      } else if (next > Integer.MAX_VALUE - srcLen) {
+        Arrays.fill(hashTable, 0);
+        next = 0;
+      }
+      final int base = next;
+      next += srcLen;
+      return base;
+    }
+
+    /**
+     * Copies the hash table of a dictionary into {@link #dictHashTable64k}.
+     * Dictionary calls get their own tables so that positions of a window,
+     * which always start at 0, never mix with those of other calls.
+     */
+    short[] load64k(short[] dictHashTable) {
+      if (dictHashTable64k == null || dictHashTable64k.length != dictHashTable.length) {
+        dictHashTable64k = new short[dictHashTable.length];
+      }
+      System.arraycopy(dictHashTable, 0, dictHashTable64k, 0, dictHashTable.length);
+      return dictHashTable64k;
+    }
+
+    /**
+     * Copies the hash table of a dictionary into {@link #dictHashTable}.
+     */
+    int[] load(int[] dictHashTable) {
+      if (this.dictHashTable == null || this.dictHashTable.length != dictHashTable.length) {
+        this.dictHashTable = new int[dictHashTable.length];
+      }
+      System.arraycopy(dictHashTable, 0, this.dictHashTable, 0, dictHashTable.length);
+      return this.dictHashTable;
+    }
+
+    /**
+     * Starts a stream of linked blocks: entries of previous calls resolve to
+     * offsets before the start of the buffer of the stream.
+     */
+    void resetStream() {
+      linkDelta = next;
+    }
+
+    /**
+     * Returns the delta between offsets in the buffer of the stream and
+     * positions in {@link #hashTable} for a block which ends at
+     * <code>srcEnd</code> and may reference <code>buf[base:]</code>.
+     */
+    int link(int base, int srcEnd, int hashLog) {
+      if (hashTable == null || hashTable.length < 1 << hashLog) {
+        hashTable = new int[1 << hashLog];
+        next = 0;
+        linkDelta = -base;
+      } else if (linkDelta > Integer.MAX_VALUE - srcEnd) {
+        Arrays.fill(hashTable, 0);
+        next = 0;
+        linkDelta = -base;
+      }
+      next = Math.max(next, srcEnd + linkDelta);
+      return linkDelta;
+    }
+
+    /**
+     * Offsets of the stream decreased by <code>shift</code>, its positions in
+     * {@link #hashTable} stay the same.
+     */
+    void slide(int shift) {
+      if (linkDelta > Integer.MAX_VALUE - shift) {
+        if (hashTable != null) {
+          Arrays.fill(hashTable, 0);
+        }
+        next = 0;
+        linkDelta = 0;
+      } else {
+        linkDelta += shift;
+      }
+    }
+  }
+
+  /**
+   * A dictionary along with the positions of its 4-byte sequences, which are
+   * copied into the hash tables of a {@link State} before compressing.
+   */
+  static final class Dictionary extends LZ4Dictionary {
+    final int hashLog;
+    final short[] hashTable64k;
+    final int[] hashTable;
+
+    Dictionary(byte[] dict, int dictOff, int dictLen, int hashLog) {
+      super(dict, dictOff, dictLen);
+      this.hashLog = hashLog;
+      hashTable64k = new short[1 << (hashLog + 1)];
+      hashTable = new int[1 << hashLog];
+      // the last positions are hashed while compressing, once the bytes which follow are known
+      for (int off = 0; off <= bytes.length - MIN_MATCH; ++off) {
+        final int v = SafeUtils.readInt(bytes, off);
+        SafeUtils.writeShort(hashTable64k, hash(v, hashLog + 1), off);
+        SafeUtils.writeInt(hashTable, hash(v, hashLog), off);
+      }
+    }
+  }
+
+  static Dictionary dictionary(LZ4Dictionary dictionary) {
+    if (!(dictionary instanceof Dictionary)) {
+      throw new IllegalArgumentException("dictionary was not loaded by a fast compressor: " + dictionary);
+    }
+    return (Dictionary) dictionary;
+  }
+
+  static State state(LZ4CompressorState state) {
+    if (!(state instanceof State)) {
+      throw new IllegalArgumentException("state was not created by a fast compressor: " + state);
+    }
+    return (State) state;
+  }
 
-  static int compress64k(byte[] src, int srcOff, int srcLen, byte[] dest, int destOff, int destEnd) {
+  @Override
+  public LZ4CompressorState newState() {
+    return new State();
+  }
+
+  @Override
+  public LZ4Dictionary loadDictionary(byte[] dict, int dictOff, int dictLen) {
+    final int memoryUsage = this.memoryUsage == AUTO_MEMORY_USAGE ? MEMORY_USAGE : this.memoryUsage;
+    return new Dictionary(dict, dictOff, dictLen, memoryUsage - 2);
+  }
+
+  @Override
+  public int compress(byte[] src, int srcOff, int srcLen, byte[] dest, int destOff, int maxDestLen) {
+    return LZ4SafeUtils.checkCompressedLength(compress(src, srcOff, srcLen, dest, destOff, maxDestLen, null));
+  }
+
+  @Override
+  public int tryCompress(byte[] src, int srcOff, int srcLen, byte[] dest, int destOff, int maxDestLen) {
+    return Math.max(compress(src, srcOff, srcLen, dest, destOff, maxDestLen, null), 0);
+  }
+
+  @Override
+  public int compress(LZ4CompressorState state, LZ4Dictionary dictionary, byte[] src, int srcOff, int srcLen, byte[] dest, int destOff, int maxDestLen) {
+    final State s = state(state);
+    final Dictionary dict = dictionary(dictionary);
+    SafeUtils.checkRange(src, srcOff, srcLen);
+    SafeUtils.checkRange(dest, destOff, maxDestLen);
+    final int destEnd = destOff + maxDestLen;
+
+    // compress the input right after the dictionary so that matches can point into it
+    final int dictLen = dict.bytes.length;
+    final int windowLen = dictLen + srcLen;
+    final byte[] window = s.window(dict, srcLen);
+    System.arraycopy(src, srcOff, window, dictLen, srcLen);
+
+    if (windowLen < LZ4_64K_LIMIT) {
+      final short[] hashTable = s.load64k(dict.hashTable64k);
+      return LZ4SafeUtils.checkCompressedLength(compress64k(window, 0, dictLen, srcLen, dest, destOff, destEnd, hashTable, dict.hashLog + 1, 0));
+    }
+    final int[] hashTable = s.load(dict.hashTable);
+    return LZ4SafeUtils.checkCompressedLength(compressLarge(window, 0, dictLen, srcLen, dest, destOff, destEnd, hashTable, dict.hashLog, 0));
+  }
+
+  @Override
+  public int compress(LZ4CompressorState state, byte[] src, int srcOff, int srcLen, byte[] dest, int destOff, int maxDestLen) {
+    return LZ4SafeUtils.checkCompressedLength(compress(src, srcOff, srcLen, dest, destOff, maxDestLen, state(state)));
+  }
+
+  @Override
+  int compressDestSize(byte[] src, int srcOff, int srcLen, byte[] dest, int destOff, int maxDestLen, int[] srcSize) {
+    SafeUtils.checkRange(src, srcOff, srcLen);
+    SafeUtils.checkRange(dest, destOff, maxDestLen);
+
+    final int hashLog = memoryUsage(Math.max(srcLen, MIN_LENGTH)) - 2;
+    return compressLarge(src, srcOff, srcOff, srcLen, dest, destOff, destOff + maxDestLen, new int[1 << hashLog], hashLog, -srcOff, srcSize);
+  }
+
+  @Override
+  void resetStream(LZ4CompressorState state) {
+    state(state).resetStream();
+  }
+
+  @Override
+  int compressLinked(LZ4CompressorState state, byte[] src, int base, int srcOff, int srcLen, byte[] dest, int destOff, int maxDestLen) {
+    final State s = state(state);
+    SafeUtils.checkRange(src, srcOff, srcLen);
+    SafeUtils.checkRange(dest, destOff, maxDestLen);
+    final int destEnd = destOff + maxDestLen;
+
+    if (srcLen < MIN_LENGTH) {
+      return LZ4SafeUtils.checkCompressedLength(LZ4SafeUtils.compressedLength(destOff, LZ4SafeUtils.lastLiterals(src, srcOff, srcLen, dest, destOff, destEnd)));
+    }
+
+    // positions do not fit in 16 bits, but use as many entries as for independent blocks below 64 KB
+    final int hashLog = (memoryUsage == AUTO_MEMORY_USAGE ? MEMORY_USAGE : memoryUsage) - 1;
+    final int delta = s.link(base, srcOff + srcLen, hashLog);
+    return LZ4SafeUtils.checkCompressedLength(compressLarge(src, base, srcOff, srcLen, dest, destOff, destEnd, s.hashTable, hashLog, delta));
+  }
+
+  @Override
+  void slideStream(LZ4CompressorState state, int shift) {
+    state(state).slide(shift);
+  }
+
+  @Override
+  public int compress(ByteBuffer src, int srcOff, int srcLen, ByteBuffer dest, int destOff, int maxDestLen) {
+    return compress(src, srcOff, srcLen, dest, destOff, maxDestLen, null);
+  }
+
+  @Override
+  public int compress(LZ4CompressorState state, ByteBuffer src, int srcOff, int srcLen, ByteBuffer dest, int destOff, int maxDestLen) {
+    return compress(src, srcOff, srcLen, dest, destOff, maxDestLen, state(state));
+  }
+
+
+  /**
+   * Compresses <code>src[srcOff:srcOff+srcLen]</code>, matches may start
+   * anywhere in <code>src[base:srcOff+srcLen]</code>, which must be less than
+   * {@link LZ4Constants#LZ4_64K_LIMIT} bytes. Positions are stored in
+   * <code>hashTable</code> as <code>sOff + delta</code>, entries which resolve
+   * before <code>base</code> are ignored. Returns -1 if <code>dest</code> is
+   * too small.
+   */
+  int compress64k(byte[] src, int base, int srcOff, int srcLen, byte[] dest, int destOff, int destEnd, short[] hashTable, int hashLog, int delta) {
     final int srcEnd = srcOff + srcLen;
     final int srcLimit = srcEnd - LAST_LITERALS;
     final int mflimit = srcEnd - MF_LIMIT;
@@ -30,8 +312,6 @@ final class LZ4JavaSafeCompressor extends LZ4Compressor {
 
     if (srcLen >= MIN_LENGTH) {
 
-      final short[] hashTable = new short[HASH_TABLE_SIZE_64K];
-
       ++sOff;
 
       main:
@@ -42,7 +322,7 @@ final class LZ4JavaSafeCompressor extends LZ4Compressor {
 
         int ref;
         int step = 1;
-        int searchMatchNb = 1 << SKIP_STRENGTH;
+        int searchMatchNb = acceleration << SKIP_STRENGTH;
         do {
           sOff = forwardOff;
           forwardOff += step;
@@ -52,13 +332,13 @@ final class LZ4JavaSafeCompressor extends LZ4Compressor {
             break main;
           }
 
-          final int h = hash64k(SafeUtils.readInt(src, sOff));
-          ref = srcOff + SafeUtils.readShort(hashTable, h);
-          SafeUtils.writeShort(hashTable, h, sOff - srcOff);
-        } while (!LZ4SafeUtils.readIntEquals(src, ref, sOff));
+          final int h = hash(SafeUtils.readInt(src, sOff), hashLog);
+          ref = SafeUtils.readShort(hashTable, h) - delta;
+          SafeUtils.writeShort(hashTable, h, sOff + delta);
+        } while (ref < base || !LZ4SafeUtils.readIntEquals(src, ref, sOff));
 
         // catch up
-        final int excess = LZ4SafeUtils.commonBytesBackward(src, ref, sOff, srcOff, anchor);
+        final int excess = LZ4SafeUtils.commonBytesBackward(src, ref, sOff, base, anchor);
         sOff -= excess;
         ref -= excess;
 
@@ -69,7 +349,7 @@ final class LZ4JavaSafeCompressor extends LZ4Compressor {
         int tokenOff = dOff++;
 
         if (dOff + runLen + (2 + 1 + LAST_LITERALS) + (runLen >>> 8) > destEnd) {
-          throw new LZ4Exception("maxDestLen is too small");
+          return -1;
         }
 
         if (runLen >= RUN_MASK) {
@@ -93,7 +373,7 @@ final class LZ4JavaSafeCompressor extends LZ4Compressor {
           ref += MIN_MATCH;
           final int matchLen = LZ4SafeUtils.commonBytes(src, ref, sOff, srcLimit);
           if (dOff + (1 + LAST_LITERALS) + (matchLen >>> 8) > destEnd) {
-            throw new LZ4Exception("maxDestLen is too small");
+            return -1;
           }
           sOff += matchLen;
 
@@ -112,14 +392,14 @@ final class LZ4JavaSafeCompressor extends LZ4Compressor {
           }
 
           // fill table
-          SafeUtils.writeShort(hashTable, hash64k(SafeUtils.readInt(src, sOff - 2)), sOff - 2 - srcOff);
+          SafeUtils.writeShort(hashTable, hash(SafeUtils.readInt(src, sOff - 2), hashLog), sOff - 2 + delta);
 
           // test next position
-          final int h = hash64k(SafeUtils.readInt(src, sOff));
-          ref = srcOff + SafeUtils.readShort(hashTable, h);
-          SafeUtils.writeShort(hashTable, h, sOff - srcOff);
+          final int h = hash(SafeUtils.readInt(src, sOff), hashLog);
+          ref = SafeUtils.readShort(hashTable, h) - delta;
+          SafeUtils.writeShort(hashTable, h, sOff + delta);
 
-          if (!LZ4SafeUtils.readIntEquals(src, sOff, ref)) {
+          if (ref < base || !LZ4SafeUtils.readIntEquals(src, sOff, ref)) {
             break;
           }
 
@@ -132,21 +412,59 @@ final class LZ4JavaSafeCompressor extends LZ4Compressor {
       }
     }
 
-    dOff = LZ4SafeUtils.lastLiterals(src, anchor, srcEnd - anchor, dest, dOff, destEnd);
-    return dOff - destOff;
+    return LZ4SafeUtils.compressedLength(destOff, LZ4SafeUtils.lastLiterals(src, anchor, srcEnd - anchor, dest, dOff, destEnd));
   }
 
-  @Override
-  public int compress(byte[] src, final int srcOff, int srcLen, byte[] dest, final int destOff, int maxDestLen) {
+  /**
+   * Compresses <code>src[srcOff:srcOff+srcLen]</code> with the tables of
+   * <code>state</code>, or with new tables if it is null, and returns the
+   * compressed length, or -1 if <code>dest</code> is too small.
+   */
+  int compress(byte[] src, final int srcOff, int srcLen, byte[] dest, final int destOff, int maxDestLen, State state) {
 
     SafeUtils.checkRange(src, srcOff, srcLen);
     SafeUtils.checkRange(dest, destOff, maxDestLen);
     final int destEnd = destOff + maxDestLen;
 
+    if (srcLen < MIN_LENGTH) {
+      return LZ4SafeUtils.compressedLength(destOff, LZ4SafeUtils.lastLiterals(src, srcOff, srcLen, dest, destOff, destEnd));
+    }
+
+    // positions are stored as sOff + delta, entries from previous calls map below srcOff
     if (srcLen < LZ4_64K_LIMIT) {
-      return compress64k(src, srcOff, srcLen, dest, destOff, destEnd);
+      final int hashLog = memoryUsage(srcLen) - 1;
+      if (state == null) {
+        return compress64k(src, srcOff, srcOff, srcLen, dest, destOff, destEnd, new short[1 << hashLog], hashLog, -srcOff);
+      }
+      final int delta = state.prepare64k(srcLen, hashLog) - srcOff;
+      return compress64k(src, srcOff, srcOff, srcLen, dest, destOff, destEnd, state.hashTable64k, hashLog, delta);
+    }
+
+    final int hashLog = memoryUsage(srcLen) - 2;
+    if (state == null) {
+      return compressLarge(src, srcOff, srcOff, srcLen, dest, destOff, destEnd, new int[1 << hashLog], hashLog, -srcOff);
     }
+    final int delta = state.prepare(srcLen, hashLog) - srcOff;
+    return compressLarge(src, srcOff, srcOff, srcLen, dest, destOff, destEnd, state.hashTable, hashLog, delta);
+  }
+
+  /**
+   * Same as {@link #compress64k(byte[], int, int, int, byte[], int, int, short[], int, int)}
+   * for inputs of any size, matches are at most {@link LZ4Constants#MAX_DISTANCE}
+   * bytes away.
+   */
+  int compressLarge(byte[] src, int base, int srcOff, int srcLen, byte[] dest, int destOff, int destEnd, int[] hashTable, int hashLog, int delta) {
+    return compressLarge(src, base, srcOff, srcLen, dest, destOff, destEnd, hashTable, hashLog, delta, null);
+  }
 
+  /**
+   * Same as {@link #compressLarge(byte[], int, int, int, byte[], int, int, int[], int, int)}
+   * except that, if <code>srcSize</code> is not null, compression stops when
+   * <code>dest</code> is full instead of returning -1 and the number
+   * of source bytes which have been compressed is stored in
+   * <code>srcSize[0]</code>, like liblz4's <code>LZ4_compress_destSize</code>.
+   */
+  int compressLarge(byte[] src, int base, int srcOff, int srcLen, byte[] dest, int destOff, int destEnd, int[] hashTable, int hashLog, int delta, int[] srcSize) {
     final int srcEnd = srcOff + srcLen;
     final int srcLimit = srcEnd - LAST_LITERALS;
     final int mflimit = srcEnd - MF_LIMIT;
@@ -154,9 +472,6 @@ final class LZ4JavaSafeCompressor extends LZ4Compressor {
     int sOff = srcOff, dOff = destOff;
     int anchor = sOff++;
 
-    final int[] hashTable = new int[HASH_TABLE_SIZE];
-    Arrays.fill(hashTable, anchor);
-
     main:
     while (true) {
 
@@ -165,7 +480,7 @@ final class LZ4JavaSafeCompressor extends LZ4Compressor {
 
       int ref;
       int step = 1;
-      int searchMatchNb = 1 << SKIP_STRENGTH;
+      int searchMatchNb = acceleration << SKIP_STRENGTH;
       int back;
       do {
         sOff = forwardOff;
@@ -176,14 +491,14 @@ final class LZ4JavaSafeCompressor extends LZ4Compressor {
           break main;
         }
 
-        final int h = hash(SafeUtils.readInt(src, sOff));
-        ref = SafeUtils.readInt(hashTable, h);
+        final int h = hash(SafeUtils.readInt(src, sOff), hashLog);
+        ref = SafeUtils.readInt(hashTable, h) - delta;
         back = sOff - ref;
-        SafeUtils.writeInt(hashTable, h, sOff);
-      } while (back >= MAX_DISTANCE || !LZ4SafeUtils.readIntEquals(src, ref, sOff));
+        SafeUtils.writeInt(hashTable, h, sOff + delta);
+      } while (back >= MAX_DISTANCE || ref < base || !LZ4SafeUtils.readIntEquals(src, ref, sOff));
 
 
-      final int excess = LZ4SafeUtils.commonBytesBackward(src, ref, sOff, srcOff, anchor);
+      final int excess = LZ4SafeUtils.commonBytesBackward(src, ref, sOff, base, anchor);
       sOff -= excess;
       ref -= excess;
 
@@ -193,8 +508,12 @@ final class LZ4JavaSafeCompressor extends LZ4Compressor {
       // encode literal length
       int tokenOff = dOff++;
 
+      if (srcSize != null && !LZ4SafeUtils.fitsSequence(runLen, tokenOff, destEnd)) {
+        dOff = tokenOff;
+        break main;
+      }
       if (dOff + runLen + (2 + 1 + LAST_LITERALS) + (runLen >>> 8) > destEnd) {
-        throw new LZ4Exception("maxDestLen is too small");
+        return -1;
       }
 
       if (runLen >= RUN_MASK) {
@@ -215,9 +534,13 @@ final class LZ4JavaSafeCompressor extends LZ4Compressor {
 
         // count nb matches
         sOff += MIN_MATCH;
-        final int matchLen = LZ4SafeUtils.commonBytes(src, ref + MIN_MATCH, sOff, srcLimit);
+        int matchLen = LZ4SafeUtils.commonBytes(src, ref + MIN_MATCH, sOff, srcLimit);
+        if (srcSize != null) {
+          // shorten the match so that the last literals still fit
+          matchLen = Math.min(matchLen, LZ4SafeUtils.maxMatchLen(dOff, destEnd) - MIN_MATCH);
+        }
         if (dOff + (1 + LAST_LITERALS) + (matchLen >>> 8) > destEnd) {
-          throw new LZ4Exception("maxDestLen is too small");
+          return -1;
         }
         sOff += matchLen;
 
@@ -236,18 +559,22 @@ final class LZ4JavaSafeCompressor extends LZ4Compressor {
         }
 
         // fill table
-        SafeUtils.writeInt(hashTable, hash(SafeUtils.readInt(src, sOff - 2)), sOff - 2);
+        SafeUtils.writeInt(hashTable, hash(SafeUtils.readInt(src, sOff - 2), hashLog), sOff - 2 + delta);
 
         // test next position
-        final int h = hash(SafeUtils.readInt(src, sOff));
-        ref = SafeUtils.readInt(hashTable, h);
-        SafeUtils.writeInt(hashTable, h, sOff);
+        final int h = hash(SafeUtils.readInt(src, sOff), hashLog);
+        ref = SafeUtils.readInt(hashTable, h) - delta;
+        SafeUtils.writeInt(hashTable, h, sOff + delta);
         back = sOff - ref;
 
-        if (back >= MAX_DISTANCE || !LZ4SafeUtils.readIntEquals(src, ref, sOff)) {
+        if (back >= MAX_DISTANCE || ref < base || !LZ4SafeUtils.readIntEquals(src, ref, sOff)) {
           break;
         }
 
+        if (srcSize != null && !LZ4SafeUtils.fitsSequence(0, dOff, destEnd)) {
+          anchor = sOff;
+          break main;
+        }
         tokenOff = dOff++;
         SafeUtils.writeByte(dest, tokenOff, 0);
       }
@@ -256,13 +583,17 @@ final class LZ4JavaSafeCompressor extends LZ4Compressor {
       anchor = sOff++;
     }
 
-    dOff = LZ4SafeUtils.lastLiterals(src, anchor, srcEnd - anchor, dest, dOff, destEnd);
-    return dOff - destOff;
+    if (srcSize != null) {
+      final int runLen = Math.min(srcEnd - anchor, LZ4SafeUtils.maxLastLiterals(dOff, destEnd));
+      srcSize[0] = anchor + runLen - srcOff;
+      return LZ4SafeUtils.lastLiterals(src, anchor, runLen, dest, dOff, destEnd) - destOff; // always fits
+    }
+    return LZ4SafeUtils.compressedLength(destOff, LZ4SafeUtils.lastLiterals(src, anchor, srcEnd - anchor, dest, dOff, destEnd));
   }
 
 
 
-  static int compress64k(ByteBuffer src, int srcOff, int srcLen, ByteBuffer dest, int destOff, int destEnd) {
+  int compress64k(ByteBuffer src, int srcOff, int srcLen, ByteBuffer dest, int destOff, int destEnd, State state) {
     final int srcEnd = srcOff + srcLen;
     final int srcLimit = srcEnd - LAST_LITERALS;
     final int mflimit = srcEnd - MF_LIMIT;
@@ -273,7 +604,17 @@ final class LZ4JavaSafeCompressor extends LZ4Compressor {
 
     if (srcLen >= MIN_LENGTH) {
 
-      final short[] hashTable = new short[HASH_TABLE_SIZE_64K];
+      // positions are stored as sOff + delta, entries from previous calls map below srcOff
+      final int hashLog = memoryUsage(srcLen) - 1;
+      final short[] hashTable;
+      final int delta;
+      if (state == null) {
+        hashTable = new short[1 << hashLog];
+        delta = -srcOff;
+      } else {
+        delta = state.prepare64k(srcLen, hashLog) - srcOff;
+        hashTable = state.hashTable64k;
+      }
 
       ++sOff;
 
@@ -285,7 +626,7 @@ final class LZ4JavaSafeCompressor extends LZ4Compressor {
 
         int ref;
         int step = 1;
-        int searchMatchNb = 1 << SKIP_STRENGTH;
+        int searchMatchNb = acceleration << SKIP_STRENGTH;
         do {
           sOff = forwardOff;
           forwardOff += step;
@@ -295,10 +636,10 @@ final class LZ4JavaSafeCompressor extends LZ4Compressor {
             break main;
           }
 
-          final int h = hash64k(ByteBufferUtils.readInt(src, sOff));
-          ref = srcOff + SafeUtils.readShort(hashTable, h);
-          SafeUtils.writeShort(hashTable, h, sOff - srcOff);
-        } while (!LZ4ByteBufferUtils.readIntEquals(src, ref, sOff));
+          final int h = hash(ByteBufferUtils.readInt(src, sOff), hashLog);
+          ref = SafeUtils.readShort(hashTable, h) - delta;
+          SafeUtils.writeShort(hashTable, h, sOff + delta);
+        } while (ref < srcOff || !LZ4ByteBufferUtils.readIntEquals(src, ref, sOff));
 
         // catch up
         final int excess = LZ4ByteBufferUtils.commonBytesBackward(src, ref, sOff, srcOff, anchor);
@@ -355,14 +696,14 @@ final class LZ4JavaSafeCompressor extends LZ4Compressor {
           }
 
           // fill table
-          SafeUtils.writeShort(hashTable, hash64k(ByteBufferUtils.readInt(src, sOff - 2)), sOff - 2 - srcOff);
+          SafeUtils.writeShort(hashTable, hash(ByteBufferUtils.readInt(src, sOff - 2), hashLog), sOff - 2 + delta);
 
           // test next position
-          final int h = hash64k(ByteBufferUtils.readInt(src, sOff));
-          ref = srcOff + SafeUtils.readShort(hashTable, h);
-          SafeUtils.writeShort(hashTable, h, sOff - srcOff);
+          final int h = hash(ByteBufferUtils.readInt(src, sOff), hashLog);
+          ref = SafeUtils.readShort(hashTable, h) - delta;
+          SafeUtils.writeShort(hashTable, h, sOff + delta);
 
-          if (!LZ4ByteBufferUtils.readIntEquals(src, sOff, ref)) {
+          if (ref < srcOff || !LZ4ByteBufferUtils.readIntEquals(src, sOff, ref)) {
             break;
           }
 
@@ -379,21 +720,26 @@ final class LZ4JavaSafeCompressor extends LZ4Compressor {
     return dOff - destOff;
   }
 
-  @Override
-  public int compress(ByteBuffer src, final int srcOff, int srcLen, ByteBuffer dest, final int destOff, int maxDestLen) {
+  int compress(ByteBuffer src, final int srcOff, int srcLen, ByteBuffer dest, final int destOff, int maxDestLen, State state) {
 
     if (src.hasArray() && dest.hasArray()) {
-      return compress(src.array(), srcOff + src.arrayOffset(), srcLen, dest.array(), destOff + dest.arrayOffset(), maxDestLen);
+      return LZ4SafeUtils.checkCompressedLength(compress(src.array(), srcOff + src.arrayOffset(), srcLen, dest.array(), destOff + dest.arrayOffset(), maxDestLen, state));
     }
     src = ByteBufferUtils.inNativeByteOrder(src);
     dest = ByteBufferUtils.inNativeByteOrder(dest);
 
+    if (src.hasArray()) {
+      return compress(src.array(), srcOff + src.arrayOffset(), srcLen, dest, destOff, maxDestLen, state);
+    } else if (dest.hasArray()) {
+      return compress(src, srcOff, srcLen, dest.array(), destOff + dest.arrayOffset(), maxDestLen, state);
+    }
+
     ByteBufferUtils.checkRange(src, srcOff, srcLen);
     ByteBufferUtils.checkRange(dest, destOff, maxDestLen);
     final int destEnd = destOff + maxDestLen;
 
     if (srcLen < LZ4_64K_LIMIT) {
-      return compress64k(src, srcOff, srcLen, dest, destOff, destEnd);
+      return compress64k(src, srcOff, srcLen, dest, destOff, destEnd, state);
     }
 
     final int srcEnd = srcOff + srcLen;
@@ -403,8 +749,17 @@ final class LZ4JavaSafeCompressor extends LZ4Compressor {
     int sOff = srcOff, dOff = destOff;
     int anchor = sOff++;
 
-    final int[] hashTable = new int[HASH_TABLE_SIZE];
-    Arrays.fill(hashTable, anchor);
+    // positions are stored as sOff + delta, entries from previous calls map below srcOff
+    final int hashLog = memoryUsage(srcLen) - 2;
+    final int[] hashTable;
+    final int delta;
+    if (state == null) {
+      hashTable = new int[1 << hashLog];
+      delta = -srcOff;
+    } else {
+      delta = state.prepare(srcLen, hashLog) - srcOff;
+      hashTable = state.hashTable;
+    }
 
     main:
     while (true) {
@@ -414,7 +769,7 @@ final class LZ4JavaSafeCompressor extends LZ4Compressor {
 
       int ref;
       int step = 1;
-      int searchMatchNb = 1 << SKIP_STRENGTH;
+      int searchMatchNb = acceleration << SKIP_STRENGTH;
       int back;
       do {
         sOff = forwardOff;
@@ -425,11 +780,11 @@ final class LZ4JavaSafeCompressor extends LZ4Compressor {
           break main;
         }
 
-        final int h = hash(ByteBufferUtils.readInt(src, sOff));
-        ref = SafeUtils.readInt(hashTable, h);
+        final int h = hash(ByteBufferUtils.readInt(src, sOff), hashLog);
+        ref = SafeUtils.readInt(hashTable, h) - delta;
         back = sOff - ref;
-        SafeUtils.writeInt(hashTable, h, sOff);
-      } while (back >= MAX_DISTANCE || !LZ4ByteBufferUtils.readIntEquals(src, ref, sOff));
+        SafeUtils.writeInt(hashTable, h, sOff + delta);
+      } while (back >= MAX_DISTANCE || ref < srcOff || !LZ4ByteBufferUtils.readIntEquals(src, ref, sOff));
 
 
       final int excess = LZ4ByteBufferUtils.commonBytesBackward(src, ref, sOff, srcOff, anchor);
@@ -485,15 +840,15 @@ final class LZ4JavaSafeCompressor extends LZ4Compressor {
         }
 
         // fill table
-        SafeUtils.writeInt(hashTable, hash(ByteBufferUtils.readInt(src, sOff - 2)), sOff - 2);
+        SafeUtils.writeInt(hashTable, hash(ByteBufferUtils.readInt(src, sOff - 2), hashLog), sOff - 2 + delta);
 
         // test next position
-        final int h = hash(ByteBufferUtils.readInt(src, sOff));
-        ref = SafeUtils.readInt(hashTable, h);
-        SafeUtils.writeInt(hashTable, h, sOff);
+        final int h = hash(ByteBufferUtils.readInt(src, sOff), hashLog);
+        ref = SafeUtils.readInt(hashTable, h) - delta;
+        SafeUtils.writeInt(hashTable, h, sOff + delta);
         back = sOff - ref;
 
-        if (back >= MAX_DISTANCE || !LZ4ByteBufferUtils.readIntEquals(src, ref, sOff)) {
+        if (back >= MAX_DISTANCE || ref < srcOff || !LZ4ByteBufferUtils.readIntEquals(src, ref, sOff)) {
           break;
         }
 
@@ -509,5 +864,335 @@ final class LZ4JavaSafeCompressor extends LZ4Compressor {
     return dOff - destOff;
   }
 
+  /**
+   * Same as {@link #compress(byte[], int, int, byte[], int, int, State)} for a
+   * heap source and a direct destination: matches are found in the array and
+   * sequences are written straight to the buffer.
+   */
+  int compress(byte[] src, final int srcOff, int srcLen, ByteBuffer dest, final int destOff, int maxDestLen, State state) {
+
+    SafeUtils.checkRange(src, srcOff, srcLen);
+    ByteBufferUtils.checkRange(dest, destOff, maxDestLen);
+    final int destEnd = destOff + maxDestLen;
+
+    if (srcLen < MIN_LENGTH) {
+      return LZ4ByteBufferUtils.lastLiterals(src, srcOff, srcLen, dest, destOff, destEnd) - destOff;
+    }
+
+    if (srcLen < LZ4_64K_LIMIT) {
+      final int hashLog = memoryUsage(srcLen) - 1;
+      if (state == null) {
+        return compress64k(src, srcOff, srcLen, dest, destOff, destEnd, new short[1 << hashLog], hashLog, -srcOff);
+      }
+      final int delta = state.prepare64k(srcLen, hashLog) - srcOff;
+      return compress64k(src, srcOff, srcLen, dest, destOff, destEnd, state.hashTable64k, hashLog, delta);
+    }
+
+    final int hashLog = memoryUsage(srcLen) - 2;
+    if (state == null) {
+      return compressLarge(src, srcOff, srcLen, dest, destOff, destEnd, new int[1 << hashLog], hashLog, -srcOff);
+    }
+    final int delta = state.prepare(srcLen, hashLog) - srcOff;
+    return compressLarge(src, srcOff, srcLen, dest, destOff, destEnd, state.hashTable, hashLog, delta);
+  }
+
+  /**
+   * Same as {@link #compress(byte[], int, int, byte[], int, int, State)} for a
+   * direct source and a heap destination.
+   */
+  int compress(ByteBuffer src, final int srcOff, int srcLen, byte[] dest, final int destOff, int maxDestLen, State state) {
+
+    ByteBufferUtils.checkRange(src, srcOff, srcLen);
+    SafeUtils.checkRange(dest, destOff, maxDestLen);
+    final int destEnd = destOff + maxDestLen;
+
+    if (srcLen < MIN_LENGTH) {
+      return LZ4ByteBufferUtils.lastLiterals(src, srcOff, srcLen, dest, destOff, destEnd) - destOff;
+    }
+
+    if (srcLen < LZ4_64K_LIMIT) {
+      final int hashLog = memoryUsage(srcLen) - 1;
+      if (state == null) {
+        return compress64k(src, srcOff, srcLen, dest, destOff, destEnd, new short[1 << hashLog], hashLog, -srcOff);
+      }
+      final int delta = state.prepare64k(srcLen, hashLog) - srcOff;
+      return compress64k(src, srcOff, srcLen, dest, destOff, destEnd, state.hashTable64k, hashLog, delta);
+    }
+
+    final int hashLog = memoryUsage(srcLen) - 2;
+    if (state == null) {
+      return compressLarge(src, srcOff, srcLen, dest, destOff, destEnd, new int[1 << hashLog], hashLog, -srcOff);
+    }
+    final int delta = state.prepare(srcLen, hashLog) - srcOff;
+    return compressLarge(src, srcOff, srcLen, dest, destOff, destEnd, state.hashTable, hashLog, delta);
+  }
+
+  int compress64k(byte[] src, int srcOff, int srcLen, ByteBuffer dest, int destOff, int destEnd, short[] hashTable, int hashLog, int delta) {
+    final int srcEnd = srcOff + srcLen;
+    final int srcLimit = srcEnd - LAST_LITERALS;
+    final int mflimit = srcEnd - MF_LIMIT;
+
+    int sOff = srcOff, dOff = destOff;
+    int anchor = sOff++;
+
+    main:
+    while (true) {
+
+      // find a match
+      int forwardOff = sOff;
+
+      int ref;
+      int step = 1;
+      int searchMatchNb = acceleration << SKIP_STRENGTH;
+      do {
+        sOff = forwardOff;
+        forwardOff += step;
+        step = searchMatchNb++ >>> SKIP_STRENGTH;
+
+        if (forwardOff > mflimit) {
+          break main;
+        }
+
+        final int h = hash(SafeUtils.readInt(src, sOff), hashLog);
+        ref = SafeUtils.readShort(hashTable, h) - delta;
+        SafeUtils.writeShort(hashTable, h, sOff + delta);
+      } while (ref < srcOff || !LZ4SafeUtils.readIntEquals(src, ref, sOff));
+
+      // catch up
+      final int excess = LZ4SafeUtils.commonBytesBackward(src, ref, sOff, srcOff, anchor);
+      sOff -= excess;
+      ref -= excess;
+
+      while (true) {
+        // encode the literals since anchor and the match
+        final int matchLen = MIN_MATCH + LZ4SafeUtils.commonBytes(src, ref + MIN_MATCH, sOff + MIN_MATCH, srcLimit);
+        dOff = LZ4ByteBufferUtils.encodeSequence(src, anchor, sOff, ref, matchLen, dest, dOff, destEnd);
+        anchor = sOff += matchLen;
+
+        // test end of chunk
+        if (sOff > mflimit) {
+          break main;
+        }
+
+        // fill table
+        SafeUtils.writeShort(hashTable, hash(SafeUtils.readInt(src, sOff - 2), hashLog), sOff - 2 + delta);
+
+        // test next position
+        final int h = hash(SafeUtils.readInt(src, sOff), hashLog);
+        ref = SafeUtils.readShort(hashTable, h) - delta;
+        SafeUtils.writeShort(hashTable, h, sOff + delta);
+
+        if (ref < srcOff || !LZ4SafeUtils.readIntEquals(src, ref, sOff)) {
+          break;
+        }
+      }
+
+      // prepare next loop
+      ++sOff;
+    }
+
+    return LZ4ByteBufferUtils.lastLiterals(src, anchor, srcEnd - anchor, dest, dOff, destEnd) - destOff;
+  }
+
+  int compressLarge(byte[] src, int srcOff, int srcLen, ByteBuffer dest, int destOff, int destEnd, int[] hashTable, int hashLog, int delta) {
+    final int srcEnd = srcOff + srcLen;
+    final int srcLimit = srcEnd - LAST_LITERALS;
+    final int mflimit = srcEnd - MF_LIMIT;
+
+    int sOff = srcOff, dOff = destOff;
+    int anchor = sOff++;
+
+    main:
+    while (true) {
+
+      // find a match
+      int forwardOff = sOff;
+
+      int ref;
+      int step = 1;
+      int searchMatchNb = acceleration << SKIP_STRENGTH;
+      do {
+        sOff = forwardOff;
+        forwardOff += step;
+        step = searchMatchNb++ >>> SKIP_STRENGTH;
+
+        if (forwardOff > mflimit) {
+          break main;
+        }
+
+        final int h = hash(SafeUtils.readInt(src, sOff), hashLog);
+        ref = SafeUtils.readInt(hashTable, h) - delta;
+        SafeUtils.writeInt(hashTable, h, sOff + delta);
+      } while (sOff - ref >= MAX_DISTANCE || ref < srcOff || !LZ4SafeUtils.readIntEquals(src, ref, sOff));
+
+      // catch up
+      final int excess = LZ4SafeUtils.commonBytesBackward(src, ref, sOff, srcOff, anchor);
+      sOff -= excess;
+      ref -= excess;
+
+      while (true) {
+        // encode the literals since anchor and the match
+        final int matchLen = MIN_MATCH + LZ4SafeUtils.commonBytes(src, ref + MIN_MATCH, sOff + MIN_MATCH, srcLimit);
+        dOff = LZ4ByteBufferUtils.encodeSequence(src, anchor, sOff, ref, matchLen, dest, dOff, destEnd);
+        anchor = sOff += matchLen;
+
+        // test end of chunk
+        if (sOff > mflimit) {
+          break main;
+        }
+
+        // fill table
+        SafeUtils.writeInt(hashTable, hash(SafeUtils.readInt(src, sOff - 2), hashLog), sOff - 2 + delta);
+
+        // test next position
+        final int h = hash(SafeUtils.readInt(src, sOff), hashLog);
+        ref = SafeUtils.readInt(hashTable, h) - delta;
+        SafeUtils.writeInt(hashTable, h, sOff + delta);
+
+        if (sOff - ref >= MAX_DISTANCE || ref < srcOff || !LZ4SafeUtils.readIntEquals(src, ref, sOff)) {
+          break;
+        }
+      }
+
+      // prepare next loop
+      ++sOff;
+    }
+
+    return LZ4ByteBufferUtils.lastLiterals(src, anchor, srcEnd - anchor, dest, dOff, destEnd) - destOff;
+  }
+
+  int compress64k(ByteBuffer src, int srcOff, int srcLen, byte[] dest, int destOff, int destEnd, short[] hashTable, int hashLog, int delta) {
+    final int srcEnd = srcOff + srcLen;
+    final int srcLimit = srcEnd - LAST_LITERALS;
+    final int mflimit = srcEnd - MF_LIMIT;
+
+    int sOff = srcOff, dOff = destOff;
+    int anchor = sOff++;
+
+    main:
+    while (true) {
+
+      // find a match
+      int forwardOff = sOff;
+
+      int ref;
+      int step = 1;
+      int searchMatchNb = acceleration << SKIP_STRENGTH;
+      do {
+        sOff = forwardOff;
+        forwardOff += step;
+        step = searchMatchNb++ >>> SKIP_STRENGTH;
+
+        if (forwardOff > mflimit) {
+          break main;
+        }
+
+        final int h = hash(ByteBufferUtils.readInt(src, sOff), hashLog);
+        ref = SafeUtils.readShort(hashTable, h) - delta;
+        SafeUtils.writeShort(hashTable, h, sOff + delta);
+      } while (ref < srcOff || !LZ4ByteBufferUtils.readIntEquals(src, ref, sOff));
+
+      // catch up
+      final int excess = LZ4ByteBufferUtils.commonBytesBackward(src, ref, sOff, srcOff, anchor);
+      sOff -= excess;
+      ref -= excess;
+
+      while (true) {
+        // encode the literals since anchor and the match
+        final int matchLen = MIN_MATCH + LZ4ByteBufferUtils.commonBytes(src, ref + MIN_MATCH, sOff + MIN_MATCH, srcLimit);
+        dOff = LZ4ByteBufferUtils.encodeSequence(src, anchor, sOff, ref, matchLen, dest, dOff, destEnd);
+        anchor = sOff += matchLen;
+
+        // test end of chunk
+        if (sOff > mflimit) {
+          break main;
+        }
+
+        // fill table
+        SafeUtils.writeShort(hashTable, hash(ByteBufferUtils.readInt(src, sOff - 2), hashLog), sOff - 2 + delta);
+
+        // test next position
+        final int h = hash(ByteBufferUtils.readInt(src, sOff), hashLog);
+        ref = SafeUtils.readShort(hashTable, h) - delta;
+        SafeUtils.writeShort(hashTable, h, sOff + delta);
+
+        if (ref < srcOff || !LZ4ByteBufferUtils.readIntEquals(src, ref, sOff)) {
+          break;
+        }
+      }
+
+      // prepare next loop
+      ++sOff;
+    }
+
+    return LZ4ByteBufferUtils.lastLiterals(src, anchor, srcEnd - anchor, dest, dOff, destEnd) - destOff;
+  }
+
+  int compressLarge(ByteBuffer src, int srcOff, int srcLen, byte[] dest, int destOff, int destEnd, int[] hashTable, int hashLog, int delta) {
+    final int srcEnd = srcOff + srcLen;
+    final int srcLimit = srcEnd - LAST_LITERALS;
+    final int mflimit = srcEnd - MF_LIMIT;
+
+    int sOff = srcOff, dOff = destOff;
+    int anchor = sOff++;
+
+    main:
+    while (true) {
+
+      // find a match
+      int forwardOff = sOff;
+
+      int ref;
+      int step = 1;
+      int searchMatchNb = acceleration << SKIP_STRENGTH;
+      do {
+        sOff = forwardOff;
+        forwardOff += step;
+        step = searchMatchNb++ >>> SKIP_STRENGTH;
+
+        if (forwardOff > mflimit) {
+          break main;
+        }
+
+        final int h = hash(ByteBufferUtils.readInt(src, sOff), hashLog);
+        ref = SafeUtils.readInt(hashTable, h) - delta;
+        SafeUtils.writeInt(hashTable, h, sOff + delta);
+      } while (sOff - ref >= MAX_DISTANCE || ref < srcOff || !LZ4ByteBufferUtils.readIntEquals(src, ref, sOff));
+
+      // catch up
+      final int excess = LZ4ByteBufferUtils.commonBytesBackward(src, ref, sOff, srcOff, anchor);
+      sOff -= excess;
+      ref -= excess;
+
+      while (true) {
+        // encode the literals since anchor and the match
+        final int matchLen = MIN_MATCH + LZ4ByteBufferUtils.commonBytes(src, ref + MIN_MATCH, sOff + MIN_MATCH, srcLimit);
+        dOff = LZ4ByteBufferUtils.encodeSequence(src, anchor, sOff, ref, matchLen, dest, dOff, destEnd);
+        anchor = sOff += matchLen;
+
+        // test end of chunk
+        if (sOff > mflimit) {
+          break main;
+        }
+
+        // fill table
+        SafeUtils.writeInt(hashTable, hash(ByteBufferUtils.readInt(src, sOff - 2), hashLog), sOff - 2 + delta);
+
+        // test next position
+        final int h = hash(ByteBufferUtils.readInt(src, sOff), hashLog);
+        ref = SafeUtils.readInt(hashTable, h) - delta;
+        SafeUtils.writeInt(hashTable, h, sOff + delta);
+
+        if (sOff - ref >= MAX_DISTANCE || ref < srcOff || !LZ4ByteBufferUtils.readIntEquals(src, ref, sOff)) {
+          break;
+        }
+      }
+
+      // prepare next loop
+      ++sOff;
+    }
+
+    return LZ4ByteBufferUtils.lastLiterals(src, anchor, srcEnd - anchor, dest, dOff, destEnd) - destOff;
+  }
 
 }
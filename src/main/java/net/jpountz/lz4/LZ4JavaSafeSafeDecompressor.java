@@ -19,10 +19,37 @@ final class LZ4JavaSafeSafeDecompressor extends LZ4SafeDecompressor {
 
   @Override
   public int decompress(byte[] src, final int srcOff, final int srcLen , byte[] dest, final int destOff, int destLen) {
+    return decompress(src, srcOff, srcLen, dest, destOff, destLen, dest, destOff, 0);
+  }
+
+  @Override
+  public int decompress(byte[] src, final int srcOff, final int srcLen , byte[] dest, final int destOff, int destLen, byte[] dict, final int dictOff, final int dictLen) {
+    return decompress(src, srcOff, srcLen, dest, destOff, destLen, dict, dictOff, dictLen, Integer.MAX_VALUE);
+  }
+
+  @Override
+  public int decompressPartial(byte[] src, final int srcOff, final int srcLen , byte[] dest, final int destOff, int targetLen, int destLen) {
+    SafeUtils.checkLength(targetLen);
+    if (targetLen == 0) {
+      return 0;
+    }
+    targetLen = Math.min(targetLen, destLen);
+    return decompress(src, srcOff, srcLen, dest, destOff, destLen, dest, destOff, 0, destOff + targetLen);
+  }
+
+  /**
+   * Decompresses until the end of the block or until the output reaches
+   * <code>targetEnd</code>, which is {@link Integer#MAX_VALUE} in order to
+   * decompress the whole block.
+   */
+  private static int decompress(byte[] src, final int srcOff, final int srcLen , byte[] dest, final int destOff, int destLen, byte[] dict, final int dictOff, final int dictLen, final int targetEnd) {
 
 
     SafeUtils.checkRange(src, srcOff, srcLen);
     SafeUtils.checkRange(dest, destOff, destLen);
+    SafeUtils.checkRange(dict, dictOff, dictLen);
+    // a dictionary which is right before destOff is read like the output
+    final boolean extDict = dict != dest || dictOff + dictLen != destOff;
 
     if (destLen == 0) {
       if (srcLen != 1 || SafeUtils.readByte(src, srcOff) != 0) {
@@ -55,21 +82,33 @@ final class LZ4JavaSafeSafeDecompressor extends LZ4SafeDecompressor {
 
       final int literalCopyEnd = dOff + literalLen;
 
+      if (literalCopyEnd >= targetEnd) {
+        // the target is reached within these literals
+        final int len = targetEnd - dOff;
+        if (targetEnd > destEnd || len > srcEnd - sOff) {
+          throw new LZ4Exception("Malformed input at " + sOff);
+        }
+        System.arraycopy(src, sOff, dest, dOff, len);
+        dOff = targetEnd;
+        break;
+      }
+
       if (literalCopyEnd > destEnd - COPY_LENGTH || sOff + literalLen > srcEnd - COPY_LENGTH) {
         if (literalCopyEnd > destEnd) {
           throw new LZ4Exception();
-        } else if (sOff + literalLen != srcEnd) {
-          throw new LZ4Exception("Malformed input at " + sOff);
-
-        } else {
+        } else if (sOff + literalLen == srcEnd) {
           LZ4SafeUtils.safeArraycopy(src, sOff, dest, dOff, literalLen);
           sOff += literalLen;
           dOff = literalCopyEnd;
           break; // EOF
+        } else if (targetEnd == Integer.MAX_VALUE || sOff + literalLen > srcEnd - 2) {
+          throw new LZ4Exception("Malformed input at " + sOff);
         }
+        // partial decoding may stop close to the end of the output
+        LZ4SafeUtils.safeArraycopy(src, sOff, dest, dOff, literalLen);
+      } else {
+        LZ4SafeUtils.wildArraycopy(src, sOff, dest, dOff, literalLen);
       }
-
-      LZ4SafeUtils.wildArraycopy(src, sOff, dest, dOff, literalLen);
       sOff += literalLen;
       dOff = literalCopyEnd;
 
@@ -78,7 +117,7 @@ final class LZ4JavaSafeSafeDecompressor extends LZ4SafeDecompressor {
       sOff += 2;
       int matchOff = dOff - matchDec;
 
-      if (matchOff < destOff) {
+      if (matchOff < destOff - dictLen) {
         throw new LZ4Exception("Malformed input at " + sOff);
       }
 
@@ -91,10 +130,22 @@ final class LZ4JavaSafeSafeDecompressor extends LZ4SafeDecompressor {
         matchLen += len & 0xFF;
       }
       matchLen += MIN_MATCH;
+      if (matchLen >= targetEnd - dOff) {
+        // only copy the beginning of the match which is before the target
+        matchLen = targetEnd - dOff;
+      }
 
       final int matchCopyEnd = dOff + matchLen;
 
-      if (matchCopyEnd > destEnd - COPY_LENGTH) {
+      if (matchOff < destOff && extDict) {
+        // the match starts in the dictionary and may continue in the output
+        if (matchCopyEnd > destEnd) {
+          throw new LZ4Exception("Malformed input at " + sOff);
+        }
+        final int dictCopyLen = Math.min(matchLen, destOff - matchOff);
+        System.arraycopy(dict, dictOff + dictLen - (destOff - matchOff), dest, dOff, dictCopyLen);
+        LZ4SafeUtils.safeIncrementalCopy(dest, destOff, dOff + dictCopyLen, matchLen - dictCopyLen);
+      } else if (matchCopyEnd > destEnd - COPY_LENGTH) {
         if (matchCopyEnd > destEnd) {
           throw new LZ4Exception("Malformed input at " + sOff);
         }
@@ -103,6 +154,9 @@ final class LZ4JavaSafeSafeDecompressor extends LZ4SafeDecompressor {
         LZ4SafeUtils.wildIncrementalCopy(dest, matchOff, dOff, matchCopyEnd);
       }
       dOff = matchCopyEnd;
+      if (dOff == targetEnd) {
+        break;
+      }
     }
 
 
@@ -116,6 +170,10 @@ final class LZ4JavaSafeSafeDecompressor extends LZ4SafeDecompressor {
 
     if (src.hasArray() && dest.hasArray()) {
       return decompress(src.array(), srcOff + src.arrayOffset(), srcLen, dest.array(), destOff + dest.arrayOffset(), destLen);
+    } else if (src.hasArray()) {
+      return decompress(src.array(), srcOff + src.arrayOffset(), srcLen, ByteBufferUtils.inNativeByteOrder(dest), destOff, destLen);
+    } else if (dest.hasArray()) {
+      return decompress(ByteBufferUtils.inNativeByteOrder(src), srcOff, srcLen, dest.array(), destOff + dest.arrayOffset(), destLen);
     }
     src = ByteBufferUtils.inNativeByteOrder(src);
     dest = ByteBufferUtils.inNativeByteOrder(dest);
@@ -211,5 +269,197 @@ final class LZ4JavaSafeSafeDecompressor extends LZ4SafeDecompressor {
   }
 
 
-}
+  /**
+   * Decompresses a heap array into a direct buffer: the input is read from the
+   * array and literals are copied to <code>dest</code> without any
+   * intermediate buffer.
+   */
+  private static int decompress(byte[] src, final int srcOff, final int srcLen , ByteBuffer dest, final int destOff, int destLen) {
+
+    SafeUtils.checkRange(src, srcOff, srcLen);
+    ByteBufferUtils.checkRange(dest, destOff, destLen);
+
+    if (destLen == 0) {
+      if (srcLen != 1 || SafeUtils.readByte(src, srcOff) != 0) {
+        throw new LZ4Exception("Output buffer too small");
+      }
+      return 0;
+    }
+
+    final int srcEnd = srcOff + srcLen;
+
+
+    final int destEnd = destOff + destLen;
+
+    int sOff = srcOff;
+    int dOff = destOff;
+
+    while (true) {
+      final int token = SafeUtils.readByte(src, sOff) & 0xFF;
+      ++sOff;
+
+      // literals
+      int literalLen = token >>> ML_BITS;
+      if (literalLen == RUN_MASK) {
+        byte len = (byte) 0xFF;
+        while (sOff < srcEnd &&(len = SafeUtils.readByte(src, sOff++)) == (byte) 0xFF) {
+          literalLen += 0xFF;
+        }
+        literalLen += len & 0xFF;
+      }
+
+      final int literalCopyEnd = dOff + literalLen;
+
+      if (literalCopyEnd > destEnd - COPY_LENGTH || sOff + literalLen > srcEnd - COPY_LENGTH) {
+        if (literalCopyEnd > destEnd) {
+          throw new LZ4Exception();
+        } else if (sOff + literalLen != srcEnd) {
+          throw new LZ4Exception("Malformed input at " + sOff);
+
+        } else {
+          LZ4ByteBufferUtils.safeArraycopy(src, sOff, dest, dOff, literalLen);
+          sOff += literalLen;
+          dOff = literalCopyEnd;
+          break; // EOF
+        }
+      }
+
+      LZ4ByteBufferUtils.safeArraycopy(src, sOff, dest, dOff, literalLen);
+      sOff += literalLen;
+      dOff = literalCopyEnd;
+
+      // matchs
+      final int matchDec = SafeUtils.readShortLE(src, sOff);
+      sOff += 2;
+      int matchOff = dOff - matchDec;
+
+      if (matchOff < destOff) {
+        throw new LZ4Exception("Malformed input at " + sOff);
+      }
+
+      int matchLen = token & ML_MASK;
+      if (matchLen == ML_MASK) {
+        byte len = (byte) 0xFF;
+        while (sOff < srcEnd &&(len = SafeUtils.readByte(src, sOff++)) == (byte) 0xFF) {
+          matchLen += 0xFF;
+        }
+        matchLen += len & 0xFF;
+      }
+      matchLen += MIN_MATCH;
+
+      final int matchCopyEnd = dOff + matchLen;
+
+      if (matchCopyEnd > destEnd - COPY_LENGTH) {
+        if (matchCopyEnd > destEnd) {
+          throw new LZ4Exception("Malformed input at " + sOff);
+        }
+        LZ4ByteBufferUtils.safeIncrementalCopy(dest, matchOff, dOff, matchLen);
+      } else {
+        LZ4ByteBufferUtils.wildIncrementalCopy(dest, matchOff, dOff, matchCopyEnd);
+      }
+      dOff = matchCopyEnd;
+    }
+
+
+    return dOff - destOff;
+
+  }
+
+  /**
+   * Decompresses a direct buffer into a heap array: literals are copied from
+   * <code>src</code> without any intermediate buffer and matches are copied
+   * within the array.
+   */
+  private static int decompress(ByteBuffer src, final int srcOff, final int srcLen , byte[] dest, final int destOff, int destLen) {
+
+    ByteBufferUtils.checkRange(src, srcOff, srcLen);
+    SafeUtils.checkRange(dest, destOff, destLen);
+
+    if (destLen == 0) {
+      if (srcLen != 1 || ByteBufferUtils.readByte(src, srcOff) != 0) {
+        throw new LZ4Exception("Output buffer too small");
+      }
+      return 0;
+    }
+
+    final int srcEnd = srcOff + srcLen;
+
+
+    final int destEnd = destOff + destLen;
+
+    int sOff = srcOff;
+    int dOff = destOff;
+
+    while (true) {
+      final int token = ByteBufferUtils.readByte(src, sOff) & 0xFF;
+      ++sOff;
+
+      // literals
+      int literalLen = token >>> ML_BITS;
+      if (literalLen == RUN_MASK) {
+        byte len = (byte) 0xFF;
+        while (sOff < srcEnd &&(len = ByteBufferUtils.readByte(src, sOff++)) == (byte) 0xFF) {
+          literalLen += 0xFF;
+        }
+        literalLen += len & 0xFF;
+      }
+
+      final int literalCopyEnd = dOff + literalLen;
+
+      if (literalCopyEnd > destEnd - COPY_LENGTH || sOff + literalLen > srcEnd - COPY_LENGTH) {
+        if (literalCopyEnd > destEnd) {
+          throw new LZ4Exception();
+        } else if (sOff + literalLen != srcEnd) {
+          throw new LZ4Exception("Malformed input at " + sOff);
+
+        } else {
+          LZ4ByteBufferUtils.safeArraycopy(src, sOff, dest, dOff, literalLen);
+          sOff += literalLen;
+          dOff = literalCopyEnd;
+          break; // EOF
+        }
+      }
+
+      LZ4ByteBufferUtils.safeArraycopy(src, sOff, dest, dOff, literalLen);
+      sOff += literalLen;
+      dOff = literalCopyEnd;
+
+      // matchs
+      final int matchDec = ByteBufferUtils.readShortLE(src, sOff);
+      sOff += 2;
+      int matchOff = dOff - matchDec;
+
+      if (matchOff < destOff) {
+        throw new LZ4Exception("Malformed input at " + sOff);
+      }
+
+      int matchLen = token & ML_MASK;
+      if (matchLen == ML_MASK) {
+        byte len = (byte) 0xFF;
+        while (sOff < srcEnd &&(len = ByteBufferUtils.readByte(src, sOff++)) == (byte) 0xFF) {
+          matchLen += 0xFF;
+        }
+        matchLen += len & 0xFF;
+      }
+      matchLen += MIN_MATCH;
+
+      final int matchCopyEnd = dOff + matchLen;
+
+      if (matchCopyEnd > destEnd - COPY_LENGTH) {
+        if (matchCopyEnd > destEnd) {
+          throw new LZ4Exception("Malformed input at " + sOff);
+        }
+        LZ4SafeUtils.safeIncrementalCopy(dest, matchOff, dOff, matchLen);
+      } else {
+        LZ4SafeUtils.wildIncrementalCopy(dest, matchOff, dOff, matchCopyEnd);
+      }
+      dOff = matchCopyEnd;
+    }
+
 
+    return dOff - destOff;
+
+  }
+
+
+}
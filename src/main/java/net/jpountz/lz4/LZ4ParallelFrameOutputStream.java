@@ -0,0 +1,353 @@
+package net.jpountz.lz4;
+
+/*
+ * Copyright 2020 Adrien Grand and the lz4-java contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+import net.jpountz.lz4.LZ4FrameOutputStream.BD;
+import net.jpountz.lz4.LZ4FrameOutputStream.BLOCKSIZE;
+import net.jpountz.lz4.LZ4FrameOutputStream.FLG;
+import net.jpountz.lz4.LZ4FrameOutputStream.FrameInfo;
+import net.jpountz.xxhash.XXHash32;
+import net.jpountz.xxhash.XXHashFactory;
+
+/**
+ * Same as {@link LZ4FrameOutputStream} except that blocks are compressed
+ * concurrently on an {@link Executor}. This class is NOT thread safe, but it
+ * keeps several cores busy when compression is the bottleneck, typically
+ * with large blocks and high compression levels.
+ * <p>
+ * Blocks are written in order, so the output is the same as the one of
+ * {@link LZ4FrameOutputStream} with the same compressor and flags. Blocks
+ * must be independent: {@link FLG.Bits#BLOCK_INDEPENDENCE} is required. The
+ * content checksum is computed on the writing thread, and block checksums
+ * by the tasks which compress the blocks.
+ * <p>
+ * At most <code>maxPendingBlocks</code> blocks are being compressed or
+ * waiting to be written at any time. Writes block until the oldest one is
+ * written when this limit is reached, so memory usage is bounded by about
+ * <code>2 * (maxPendingBlocks + 1)</code> times the block size. Waiting
+ * for a block from a {@link ForkJoinPool} thread does not starve the pool.
+ * <p>
+ * An exception thrown while compressing a block leaves the frame incomplete.
+ * It is rethrown, wrapped in an {@link IOException}, by every later write,
+ * flush or close, and close still closes the underlying stream.
+ *
+ * @see LZ4FrameOutputStream
+ */
+public class LZ4ParallelFrameOutputStream extends FilterOutputStream {
+
+  private final LZ4Compressor compressor;
+  private final XXHash32 checksum;
+  private final Executor executor;
+  private final int maxPendingBlocks;
+  private final int maxBlockSize;
+  private final long knownSize;
+  private final FrameInfo frameInfo;
+  private final ArrayDeque<Block> pending = new ArrayDeque<Block>(); // in output order
+  private final ArrayDeque<Block> free = new ArrayDeque<Block>();
+  private final ByteBuffer intLEBuffer = ByteBuffer.allocate(LZ4FrameOutputStream.INTEGER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+  private Block current = null; // the block which is being filled, lazily allocated
+  private Throwable failure = null; // why a block could not be compressed
+
+  /**
+   * Creates a new {@link OutputStream} that will compress data of unknown
+   * size with the fastest instances of {@link LZ4Compressor} and
+   * {@link XXHash32}, on the common {@link ForkJoinPool} with as many
+   * pending blocks as available processors.
+   *
+   * @param out the output stream to compress
+   * @param blockSize the BLOCKSIZE to use
+   * @param bits a set of features to use, which must include
+   *        {@link FLG.Bits#BLOCK_INDEPENDENCE}
+   * @throws IOException if an I/O error occurs
+   *
+   * @see #LZ4ParallelFrameOutputStream(OutputStream, BLOCKSIZE, long, LZ4Compressor, XXHash32, Executor, int, FLG.Bits...)
+   */
+  public LZ4ParallelFrameOutputStream(OutputStream out, BLOCKSIZE blockSize, FLG.Bits... bits) throws IOException {
+    this(out, blockSize, -1L, LZ4Factory.getInstance().fastCompressor(), XXHashFactory.fastestInstance().hash32(),
+        ForkJoinPool.commonPool(), Runtime.getRuntime().availableProcessors(), bits);
+  }
+
+  /**
+   * Creates a new {@link OutputStream} that will compress data using the
+   * specified instances of {@link LZ4Compressor} and {@link XXHash32} on
+   * <code>executor</code>.
+   *
+   * @param out the output stream to compress
+   * @param blockSize the BLOCKSIZE to use
+   * @param knownSize the size of the uncompressed data. A value less than zero means unknown.
+   * @param compressor the {@link LZ4Compressor} instance to use to compress data
+   * @param checksum the {@link XXHash32} instance to use to check data for integrity
+   * @param executor the executor which runs compression tasks
+   * @param maxPendingBlocks the maximum number of blocks which are
+   *        compressed or waiting to be written, at least 1
+   * @param bits a set of features to use, which must include
+   *        {@link FLG.Bits#BLOCK_INDEPENDENCE}
+   * @throws IOException if an I/O error occurs
+   */
+  public LZ4ParallelFrameOutputStream(OutputStream out, BLOCKSIZE blockSize, long knownSize,
+                                      LZ4Compressor compressor, XXHash32 checksum, Executor executor,
+                                      int maxPendingBlocks, FLG.Bits... bits) throws IOException {
+    super(out);
+    if (maxPendingBlocks < 1) {
+      throw new IllegalArgumentException("maxPendingBlocks must be >= 1, got " + maxPendingBlocks);
+    }
+    this.compressor = compressor;
+    this.checksum = checksum;
+    this.executor = executor;
+    this.maxPendingBlocks = maxPendingBlocks;
+    frameInfo = new FrameInfo(new FLG(FLG.DEFAULT_VERSION, bits), new BD(blockSize));
+    if (!frameInfo.isEnabled(FLG.Bits.BLOCK_INDEPENDENCE)) {
+      throw new IllegalArgumentException("Blocks must be independent in order to be compressed concurrently");
+    }
+    if (frameInfo.isEnabled(FLG.Bits.CONTENT_SIZE) && knownSize < 0) {
+      throw new IllegalArgumentException("Known size must be greater than zero in order to use the known size feature");
+    }
+    maxBlockSize = frameInfo.getBD().getBlockMaximumSize();
+    this.knownSize = knownSize;
+    LZ4FrameOutputStream.writeHeader(out, frameInfo, knownSize, checksum);
+  }
+
+  /**
+   * Creates a new {@link OutputStream} that will compress data with 4-MB
+   * independent blocks.
+   *
+   * @param out the output stream to compress
+   * @throws IOException if an I/O error occurs
+   *
+   * @see #LZ4ParallelFrameOutputStream(OutputStream, BLOCKSIZE, FLG.Bits...)
+   */
+  public LZ4ParallelFrameOutputStream(OutputStream out) throws IOException {
+    this(out, BLOCKSIZE.SIZE_4MB, LZ4FrameOutputStream.DEFAULT_FEATURES);
+  }
+
+  /**
+   * A block and the buffers which are needed to compress it, which are reused
+   * once the block is written.
+   */
+  private final class Block implements Runnable {
+    final byte[] raw = new byte[maxBlockSize];
+    final byte[] compressed = new byte[maxBlockSize]; // blocks which do not compress are stored as is
+    int len;
+    int compressedLen; // with LZ4_FRAME_INCOMPRESSIBLE_MASK if the block is stored uncompressed
+    int hash;
+    CompletableFuture<Void> future;
+
+    @Override
+    public void run() {
+      // give up as soon as the block does not compress, like LZ4FrameOutputStream
+      final int compressedLen = compressor.tryCompress(raw, 0, len, compressed, 0, len - 1);
+      // Store block uncompressed if compressed length is greater (incompressible)
+      if (compressedLen == 0) {
+        this.compressedLen = len | LZ4FrameOutputStream.LZ4_FRAME_INCOMPRESSIBLE_MASK;
+        if (frameInfo.isEnabled(FLG.Bits.BLOCK_CHECKSUM)) {
+          hash = checksum.hash(raw, 0, len, 0);
+        }
+      } else {
+        this.compressedLen = compressedLen;
+        if (frameInfo.isEnabled(FLG.Bits.BLOCK_CHECKSUM)) {
+          hash = checksum.hash(compressed, 0, compressedLen, 0);
+        }
+      }
+    }
+
+    void write() throws IOException {
+      final boolean incompressible = (compressedLen & LZ4FrameOutputStream.LZ4_FRAME_INCOMPRESSIBLE_MASK) != 0;
+      final int length = compressedLen & ~LZ4FrameOutputStream.LZ4_FRAME_INCOMPRESSIBLE_MASK;
+      writeInt(compressedLen);
+      out.write(incompressible ? raw : compressed, 0, length);
+      if (frameInfo.isEnabled(FLG.Bits.BLOCK_CHECKSUM)) {
+        writeInt(hash);
+      }
+    }
+  }
+
+  private void writeInt(int i) throws IOException {
+    intLEBuffer.putInt(0, i);
+    out.write(intLEBuffer.array());
+  }
+
+  /**
+   * Submits the current block for compression, after waiting for the oldest
+   * pending block to be written if there are too many of them.
+   */
+  private void submitBlock() throws IOException {
+    if (current == null || current.len == 0) {
+      return;
+    }
+    if (frameInfo.isEnabled(FLG.Bits.CONTENT_CHECKSUM)) {
+      frameInfo.updateStreamHash(current.raw, 0, current.len);
+    }
+    while (pending.size() >= maxPendingBlocks) {
+      writePendingBlock();
+    }
+    current.future = CompletableFuture.runAsync(current, executor);
+    pending.add(current);
+    current = null;
+    // write the blocks which are already compressed without waiting
+    while (!pending.isEmpty() && pending.peek().future.isDone()) {
+      writePendingBlock();
+    }
+  }
+
+  /**
+   * Waits for the oldest pending block to be compressed and writes it.
+   */
+  private void writePendingBlock() throws IOException {
+    final Block block = pending.peek();
+    try {
+      block.future.join();
+    } catch (CompletionException e) {
+      throw failed(e.getCause());
+    } catch (RuntimeException e) { // cancelled
+      throw failed(e);
+    }
+    pending.poll();
+    block.write();
+    block.future = null;
+    block.len = 0;
+    free.add(block);
+  }
+
+  /**
+   * Forgets pending blocks after a failure, the frame cannot be completed.
+   */
+  private IOException failed(Throwable cause) {
+    pending.clear();
+    frameInfo.finish();
+    failure = cause;
+    return failure();
+  }
+
+  private IOException failure() {
+    return new IOException("Failed to compress a block", failure);
+  }
+
+  private void writeAllPendingBlocks() throws IOException {
+    while (!pending.isEmpty()) {
+      if (Thread.interrupted()) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException();
+      }
+      writePendingBlock();
+    }
+  }
+
+  private Block currentBlock() {
+    if (current == null) {
+      current = free.isEmpty() ? new Block() : free.poll();
+    }
+    return current;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    ensureNotFinished();
+    Block block = currentBlock();
+    if (block.len == maxBlockSize) {
+      submitBlock();
+      block = currentBlock();
+    }
+    block.raw[block.len++] = (byte) b;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    if ((off < 0) || (len < 0) || (off + len > b.length)) {
+      throw new IndexOutOfBoundsException();
+    }
+    ensureNotFinished();
+
+    while (len > 0) {
+      Block block = currentBlock();
+      if (block.len == maxBlockSize) {
+        submitBlock();
+        block = currentBlock();
+      }
+      final int n = Math.min(len, maxBlockSize - block.len);
+      System.arraycopy(b, off, block.raw, block.len, n);
+      block.len += n;
+      off += n;
+      len -= n;
+    }
+  }
+
+  /**
+   * Compresses and writes all buffered data, waiting for pending blocks, then
+   * flushes the underlying stream.
+   *
+   * @throws IOException if an I/O error occurs or a block could not be compressed
+   */
+  @Override
+  public void flush() throws IOException {
+    if (failure != null) {
+      throw failure();
+    }
+    if (!frameInfo.isFinished()) {
+      submitBlock();
+      writeAllPendingBlocks();
+    }
+    super.flush();
+  }
+
+  private void ensureNotFinished() throws IOException {
+    if (failure != null) {
+      throw failure();
+    }
+    if (frameInfo.isFinished()) {
+      throw new IllegalStateException(LZ4FrameOutputStream.CLOSED_STREAM);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      if (failure != null) {
+        throw failure();
+      }
+      if (!frameInfo.isFinished()) {
+        flush();
+        writeInt(0);
+        if (frameInfo.isEnabled(FLG.Bits.CONTENT_CHECKSUM)) {
+          writeInt(frameInfo.currentStreamHash());
+        }
+        frameInfo.finish();
+      }
+    } finally {
+      // also when the last blocks could not be compressed or written
+      out.close();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + "(out=" + out + ", compressor=" + compressor
+        + ", executor=" + executor + ", maxPendingBlocks=" + maxPendingBlocks + ")";
+  }
+
+}
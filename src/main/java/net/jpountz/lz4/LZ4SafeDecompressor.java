@@ -19,6 +19,9 @@ package net.jpountz.lz4;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 
+import net.jpountz.util.ByteBufferUtils;
+import net.jpountz.util.SafeUtils;
+
 /**
  * LZ4 decompressor that requires the size of the compressed data to be known.
  * <p>
@@ -44,6 +47,80 @@ public abstract class LZ4SafeDecompressor {
    */
   public abstract int decompress(byte[] src, int srcOff, int srcLen, byte[] dest, int destOff, int maxDestLen);
 
+  /**
+   * Decompresses <code>src[srcOff:srcOff+srcLen]</code>, which may reference
+   * <code>dict[dictOff:dictOff+dictLen]</code> as if it preceded the output,
+   * into <code>dest[destOff:destOff+maxDestLen]</code> and returns the number
+   * of decompressed bytes written into <code>dest</code>. This is the
+   * equivalent of liblz4's <code>LZ4_decompress_safe_usingDict</code>.
+   * <p>
+   * The dictionary is typically the one that has been passed to
+   * {@link LZ4Compressor#loadDictionary(byte[], int, int)}. It may also be
+   * previously decompressed data right before <code>destOff</code> in
+   * <code>dest</code>.
+   *
+   * @param src the compressed data
+   * @param srcOff the start offset in src
+   * @param srcLen the exact size of the compressed data
+   * @param dest the destination buffer to store the decompressed data
+   * @param destOff the start offset in dest
+   * @param maxDestLen the maximum number of bytes to write in dest
+   * @param dict the dictionary
+   * @param dictOff the start offset in dict
+   * @param dictLen the length of the dictionary
+   * @return the original input size
+   * @throws LZ4Exception if maxDestLen is too small
+   * @throws UnsupportedOperationException if dictLen is not 0 and this
+   *         implementation does not support dictionaries
+   */
+  public int decompress(byte[] src, int srcOff, int srcLen, byte[] dest, int destOff, int maxDestLen, byte[] dict, int dictOff, int dictLen) {
+    SafeUtils.checkRange(dict, dictOff, dictLen);
+    if (dictLen == 0) {
+      return decompress(src, srcOff, srcLen, dest, destOff, maxDestLen);
+    }
+    throw new UnsupportedOperationException(getClass().getName() + " does not support dictionaries");
+  }
+
+  /**
+   * Decompresses the beginning of <code>src[srcOff:srcOff+srcLen]</code>
+   * into <code>dest[destOff:destOff+maxDestLen]</code>, stopping as soon as
+   * <code>targetLen</code> bytes have been produced, like liblz4's
+   * <code>LZ4_decompress_safe_partial</code>. This is much faster than
+   * decompressing the whole block when only its first bytes are needed.
+   * <p>
+   * Bytes of <code>dest</code> after the target may be overwritten, but no
+   * more than <code>maxDestLen</code> bytes are written. The compressed data
+   * which follows the target is not validated.
+   *
+   * @param src the compressed data
+   * @param srcOff the start offset in src
+   * @param srcLen the exact size of the compressed data
+   * @param dest the destination buffer to store the decompressed data
+   * @param destOff the start offset in dest
+   * @param targetLen the number of bytes to decompress, capped to maxDestLen
+   * @param maxDestLen the maximum number of bytes to write in dest
+   * @return the number of decompressed bytes, which is
+   *         <code>targetLen</code> unless the block is shorter
+   * @throws LZ4Exception if the compressed data is malformed
+   */
+  public int decompressPartial(byte[] src, int srcOff, int srcLen, byte[] dest, int destOff, int targetLen, int maxDestLen) {
+    SafeUtils.checkRange(dest, destOff, maxDestLen);
+    SafeUtils.checkLength(targetLen);
+    targetLen = Math.min(targetLen, maxDestLen);
+    if (targetLen == 0) {
+      return 0;
+    }
+    // decompress the whole block, in dest if it fits, and keep its beginning
+    final int decompressedLen = getDecompressedLength(src, srcOff, srcLen);
+    if (decompressedLen <= maxDestLen) {
+      return Math.min(targetLen, decompress(src, srcOff, srcLen, dest, destOff, maxDestLen));
+    }
+    final byte[] tmp = new byte[decompressedLen];
+    decompress(src, srcOff, srcLen, tmp, 0, decompressedLen);
+    System.arraycopy(tmp, 0, dest, destOff, targetLen);
+    return targetLen;
+  }
+
   /**
    * Decompresses <code>src[srcOff:srcOff+srcLen]</code> into
    * <code>dest[destOff:destOff+maxDestLen]</code> and returns the number of
@@ -60,6 +137,95 @@ public abstract class LZ4SafeDecompressor {
    */
   public abstract int decompress(ByteBuffer src, int srcOff, int srcLen, ByteBuffer dest, int destOff, int maxDestLen);
 
+  /**
+   * Returns the decompressed length of the block
+   * <code>src[srcOff:srcOff+srcLen]</code>. The sequences of the block are
+   * walked without decompressing anything, which is much cheaper than
+   * decompressing. The returned length can be used to allocate the
+   * destination buffer exactly, and malformed blocks are rejected before any
+   * memory is allocated for them. Like decompression, this method does not
+   * validate the content of the block, only its structure.
+   *
+   * @param src the compressed data
+   * @param srcOff the start offset in src
+   * @param srcLen the exact size of the compressed data
+   * @return the decompressed length
+   * @throws LZ4Exception if the compressed data is malformed
+   */
+  public static int getDecompressedLength(byte[] src, int srcOff, int srcLen) {
+    SafeUtils.checkRange(src, srcOff, srcLen);
+    return LZ4SafeUtils.decompressedLength(src, srcOff, srcLen);
+  }
+
+  /**
+   * Returns the decompressed length of the block
+   * <code>src[srcOff:srcOff+srcLen]</code>. The position and limit of
+   * <code>src</code> remain unchanged.
+   *
+   * @param src the compressed data
+   * @param srcOff the start offset in src
+   * @param srcLen the exact size of the compressed data
+   * @return the decompressed length
+   * @throws LZ4Exception if the compressed data is malformed
+   * @see #getDecompressedLength(byte[], int, int)
+   */
+  public static int getDecompressedLength(ByteBuffer src, int srcOff, int srcLen) {
+    if (src.hasArray()) {
+      return getDecompressedLength(src.array(), srcOff + src.arrayOffset(), srcLen);
+    }
+    ByteBufferUtils.checkRange(src, srcOff, srcLen);
+    return LZ4ByteBufferUtils.decompressedLength(src, srcOff, srcLen);
+  }
+
+  /**
+   * Returns the number of bytes that must be available after the decompressed
+   * data in order to decompress <code>compressedLen</code> bytes in place.
+   *
+   * @param compressedLen the size of the compressed data
+   * @return the in-place decompression margin
+   * @see #decompressInPlace(byte[], int, int, int)
+   */
+  public static int inPlaceMargin(int compressedLen) {
+    return LZ4Utils.inPlaceMargin(compressedLen);
+  }
+
+  /**
+   * Returns the size of a buffer that can decompress in place any block of
+   * at most <code>maxBlockLen</code> bytes, whether compressed or not. This
+   * is the case of the blocks of the LZ4 frame and block formats, which are
+   * stored uncompressed when they do not compress.
+   *
+   * @param maxBlockLen the maximum size of the decompressed and compressed data
+   * @return the size of the buffer
+   */
+  public static int inPlaceBufferSize(int maxBlockLen) {
+    return maxBlockLen + inPlaceMargin(maxBlockLen);
+  }
+
+  /**
+   * Decompresses in place the compressed data which is stored at the end of
+   * <code>buf[off:off+len]</code>, that is
+   * <code>buf[off+len-compressedLen:off+len]</code>, into the start of the
+   * same range and returns the number of decompressed bytes. This removes the
+   * need for a separate buffer for the compressed data. At most
+   * <code>len - {@link #inPlaceMargin(int) inPlaceMargin}(compressedLen)</code>
+   * bytes can be decompressed.
+   *
+   * @param buf the buffer which holds the compressed data and receives the
+   *        decompressed data
+   * @param off the start offset in buf
+   * @param len the size of the range of buf to use
+   * @param compressedLen the exact size of the compressed data
+   * @return the original input size
+   * @throws LZ4Exception if the decompressed data does not fit
+   * @throws IllegalArgumentException if len is smaller than compressedLen or
+   *         than the margin
+   */
+  public final int decompressInPlace(byte[] buf, int off, int len, int compressedLen) {
+    final int maxDestLen = LZ4Utils.maxInPlaceDestLen(buf, off, len, compressedLen);
+    return decompress(buf, off + len - compressedLen, compressedLen, buf, off, maxDestLen);
+  }
+
   /**
    * Convenience method, equivalent to calling
    * {@link #decompress(byte[], int, int, byte[], int, int) decompress(src, srcOff, srcLen, dest, destOff, dest.length - destOff)}.
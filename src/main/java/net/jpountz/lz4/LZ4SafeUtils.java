@@ -16,15 +16,24 @@ package net.jpountz.lz4;
  * limitations under the License.
  */
 
+import static net.jpountz.lz4.LZ4Constants.COPY_LENGTH;
 import static net.jpountz.lz4.LZ4Constants.LAST_LITERALS;
+import static net.jpountz.lz4.LZ4Constants.MF_LIMIT;
+import static net.jpountz.lz4.LZ4Constants.MIN_MATCH;
 import static net.jpountz.lz4.LZ4Constants.ML_BITS;
 import static net.jpountz.lz4.LZ4Constants.ML_MASK;
 import static net.jpountz.lz4.LZ4Constants.RUN_MASK;
+
+import java.util.Arrays;
+
 import net.jpountz.util.SafeUtils;
 
 enum LZ4SafeUtils {
   ;
 
+  // below this length, copying 8 bytes at a time is faster than System.arraycopy
+  private static final int ARRAYCOPY_THRESHOLD = 32;
+
   static int hash(byte[] buf, int i) {
     return LZ4Utils.hash(SafeUtils.readInt(buf, i));
   }
@@ -34,43 +43,55 @@ enum LZ4SafeUtils {
   }
 
   static boolean readIntEquals(byte[] buf, int i, int j) {
-    return buf[i] == buf[j] && buf[i+1] == buf[j+1] && buf[i+2] == buf[j+2] && buf[i+3] == buf[j+3];
+    return LZ4MatchUtils.readIntEquals(buf, i, j);
   }
 
   static void safeIncrementalCopy(byte[] dest, int matchOff, int dOff, int matchLen) {
+    if (dOff - matchOff >= matchLen) {
+      System.arraycopy(dest, matchOff, dest, dOff, matchLen);
+      return;
+    }
     for (int i = 0; i < matchLen; ++i) {
       dest[dOff + i] = dest[matchOff + i];
     }
   }
 
   static void wildIncrementalCopy(byte[] dest, int matchOff, int dOff, int matchCopyEnd) {
-    do {
+    final int matchDec = dOff - matchOff;
+    if (matchDec == 1) {
+      Arrays.fill(dest, dOff, matchCopyEnd, dest[matchOff]);
+      return;
+    } else if (matchDec > 1 && matchDec < COPY_LENGTH) {
+      // the match overlaps the bytes it produces: copy one byte at a time until
+      // the distance to the source is a multiple of matchDec that is >= 8, then
+      // the pattern repeats and word copies can take over
+      final int dec = matchDec * ((COPY_LENGTH + matchDec - 1) / matchDec);
+      final int end = Math.min(dOff + dec, matchCopyEnd);
+      while (dOff < end) {
+        dest[dOff++] = dest[matchOff++];
+      }
+      matchOff = dOff - dec;
+    } else if (matchDec >= matchCopyEnd - dOff && matchCopyEnd - dOff > ARRAYCOPY_THRESHOLD) {
+      System.arraycopy(dest, matchOff, dest, dOff, matchCopyEnd - dOff);
+      return;
+    }
+    while (dOff < matchCopyEnd) {
       copy8Bytes(dest, matchOff, dest, dOff);
       matchOff += 8;
       dOff += 8;
-    } while (dOff < matchCopyEnd);
+    }
   }
 
   static void copy8Bytes(byte[] src, int sOff, byte[] dest, int dOff) {
-    for (int i = 0; i < 8; ++i) {
-      dest[dOff + i] = src[sOff + i];
-    }
+    SafeUtils.writeLongLE(dest, dOff, SafeUtils.readLongLE(src, sOff));
   }
 
   static int commonBytes(byte[] b, int o1, int o2, int limit) {
-    int count = 0;
-    while (o2 < limit && b[o1++] == b[o2++]) {
-      ++count;
-    }
-    return count;
+    return LZ4MatchUtils.commonBytes(b, o1, o2, limit);
   }
 
   static int commonBytesBackward(byte[] b, int o1, int o2, int l1, int l2) {
-    int count = 0;
-    while (o1 > l1 && o2 > l2 && b[--o1] == b[--o2]) {
-      ++count;
-    }
-    return count;
+    return LZ4MatchUtils.commonBytesBackward(b, o1, o2, l1, l2);
   }
 
   static void safeArraycopy(byte[] src, int sOff, byte[] dest, int dOff, int len) {
@@ -79,6 +100,10 @@ enum LZ4SafeUtils {
 
   static void wildArraycopy(byte[] src, int sOff, byte[] dest, int dOff, int len) {
     try {
+      if (len > ARRAYCOPY_THRESHOLD) {
+        System.arraycopy(src, sOff, dest, dOff, len);
+        return;
+      }
       for (int i = 0; i < len; i += 8) {
         copy8Bytes(src, sOff + i, dest, dOff + i);
       }
@@ -87,12 +112,16 @@ enum LZ4SafeUtils {
     }
   }
 
+  /**
+   * Encodes a sequence and returns the new offset in <code>dest</code>, or -1
+   * if it does not fit.
+   */
   static int encodeSequence(byte[] src, int anchor, int matchOff, int matchRef, int matchLen, byte[] dest, int dOff, int destEnd) {
     final int runLen = matchOff - anchor;
     final int tokenOff = dOff++;
 
     if (dOff + runLen + (2 + 1 + LAST_LITERALS) + (runLen >>> 8) > destEnd) {
-      throw new LZ4Exception("maxDestLen is too small");
+      return -1;
     }
 
     int token;
@@ -115,7 +144,7 @@ enum LZ4SafeUtils {
     // encode match len
     matchLen -= 4;
     if (dOff + (1 + LAST_LITERALS) + (matchLen >>> 8) > destEnd) {
-      throw new LZ4Exception("maxDestLen is too small");
+      return -1;
     }
     if (matchLen >= ML_MASK) {
       token |= ML_MASK;
@@ -129,11 +158,52 @@ enum LZ4SafeUtils {
     return dOff;
   }
 
+  /**
+   * Room which compressors keep at the end of the destination buffer when
+   * they fill it: a token and enough literals for the last match to start at
+   * least {@link LZ4Constants#MF_LIMIT} bytes before the end of the block.
+   */
+  static final int DEST_SIZE_RESERVE = 1 + MF_LIMIT - MIN_MATCH;
+
+  /**
+   * Returns whether a sequence of <code>runLen</code> literals whose token is
+   * at <code>tokenOff</code>, followed by a match of at most 18 bytes, fits in
+   * <code>dest[:destEnd]</code> along with {@link #DEST_SIZE_RESERVE}.
+   */
+  static boolean fitsSequence(int runLen, int tokenOff, int destEnd) {
+    return tokenOff + 1 + runLen + (runLen + 255 - RUN_MASK) / 255 + 2 + DEST_SIZE_RESERVE <= destEnd;
+  }
+
+  /**
+   * Returns the length of the longest match whose extra length bytes fit at
+   * <code>dOff</code>, right after its offset, along with
+   * {@link #DEST_SIZE_RESERVE}.
+   */
+  static int maxMatchLen(int dOff, int destEnd) {
+    final int lenBytes = destEnd - dOff - DEST_SIZE_RESERVE;
+    if (lenBytes >= Integer.MAX_VALUE >>> 8) {
+      return Integer.MAX_VALUE;
+    }
+    return MIN_MATCH + ML_MASK - 1 + 255 * lenBytes;
+  }
+
+  /**
+   * Returns the number of last literals which fit at <code>dOff</code>.
+   */
+  static int maxLastLiterals(int dOff, int destEnd) {
+    final int room = destEnd - dOff - 1;
+    return room - (room + 256 - RUN_MASK) / 256;
+  }
+
+  /**
+   * Encodes the last literals and returns the end offset in <code>dest</code>,
+   * or -1 if they do not fit.
+   */
   static int lastLiterals(byte[] src, int sOff, int srcLen, byte[] dest, int dOff, int destEnd) {
     final int runLen = srcLen;
 
     if (dOff + runLen + 1 + (runLen + 255 - RUN_MASK) / 255 > destEnd) {
-      throw new LZ4Exception();
+      return -1;
     }
 
     if (runLen >= RUN_MASK) {
@@ -149,6 +219,28 @@ enum LZ4SafeUtils {
     return dOff;
   }
 
+  /**
+   * Returns <code>compressedLen</code>, the result of an array engine, or
+   * throws if the engine returned -1 because the output did not fit. Array
+   * engines do not throw themselves so that
+   * {@link LZ4Compressor#tryCompress} does not pay for exceptions.
+   */
+  static int checkCompressedLength(int compressedLen) {
+    if (compressedLen < 0) {
+      throw new LZ4Exception("maxDestLen is too small");
+    }
+    return compressedLen;
+  }
+
+  /**
+   * Returns the number of bytes written since <code>destOff</code> given the
+   * end offset <code>dOff</code> returned by {@link #lastLiterals}, or -1 if
+   * the output did not fit.
+   */
+  static int compressedLength(int destOff, int dOff) {
+    return dOff < 0 ? -1 : dOff - destOff;
+  }
+
   static int writeLen(int len, byte[] dest, int dOff) {
     while (len >= 0xFF) {
       dest[dOff++] = (byte) 0xFF;
@@ -158,6 +250,72 @@ enum LZ4SafeUtils {
     return dOff;
   }
 
+  /**
+   * Walks the sequences of the block <code>src[srcOff:srcOff+srcLen]</code>
+   * without decompressing it and returns its decompressed length. The block
+   * is validated like decompression into a buffer of exactly this length
+   * would, except for the content of the matches.
+   */
+  static int decompressedLength(byte[] src, int srcOff, int srcLen) {
+    final int srcEnd = srcOff + srcLen;
+    int sOff = srcOff;
+    long dLen = 0;
+    long literalEnd = Long.MIN_VALUE; // end of the last literals which are followed by a match
+
+    while (true) {
+      if (sOff >= srcEnd) {
+        throw new LZ4Exception("Malformed input at " + sOff);
+      }
+      final int token = SafeUtils.readByte(src, sOff++) & 0xFF;
+
+      // literals
+      long literalLen = token >>> ML_BITS;
+      if (literalLen == RUN_MASK) {
+        byte len = (byte) 0xFF;
+        while (sOff < srcEnd && (len = SafeUtils.readByte(src, sOff++)) == (byte) 0xFF) {
+          literalLen += 0xFF;
+        }
+        literalLen += len & 0xFF;
+      }
+      if (literalLen == srcEnd - sOff) {
+        dLen += literalLen;
+        break; // EOF
+      } else if (literalLen > srcEnd - sOff - COPY_LENGTH) {
+        throw new LZ4Exception("Malformed input at " + sOff);
+      }
+      sOff += literalLen;
+      dLen += literalLen;
+      literalEnd = dLen;
+
+      // matchs
+      final int matchDec = SafeUtils.readShortLE(src, sOff);
+      sOff += 2;
+      if (matchDec > dLen) {
+        throw new LZ4Exception("Malformed input at " + sOff);
+      }
+      long matchLen = token & ML_MASK;
+      if (matchLen == ML_MASK) {
+        byte len = (byte) 0xFF;
+        while (sOff < srcEnd && (len = SafeUtils.readByte(src, sOff++)) == (byte) 0xFF) {
+          matchLen += 0xFF;
+        }
+        matchLen += len & 0xFF;
+      }
+      dLen += matchLen + MIN_MATCH;
+    }
+
+    if (dLen > Integer.MAX_VALUE) {
+      throw new LZ4Exception("Decompressed length exceeds " + Integer.MAX_VALUE);
+    } else if (dLen == 0 && (srcLen != 1 || SafeUtils.readByte(src, srcOff) != 0)) {
+      throw new LZ4Exception("Malformed input at " + srcOff);
+    } else if (literalEnd > dLen - COPY_LENGTH) {
+      // decompressors copy literals 8 bytes at a time, only the last ones may
+      // end less than 8 bytes before the end of the output
+      throw new LZ4Exception("Malformed input at " + srcOff);
+    }
+    return (int) dLen;
+  }
+
   static class Match {
     int start, ref, len;
 
@@ -0,0 +1,250 @@
+package net.jpountz.lz4;
+
+/*
+ * Copyright 2020 Adrien Grand and the lz4-java contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SeekableByteChannel;
+import java.util.Arrays;
+import java.util.Locale;
+
+import net.jpountz.lz4.LZ4FrameOutputStream.BD;
+import net.jpountz.lz4.LZ4FrameOutputStream.FLG;
+import net.jpountz.xxhash.XXHash32;
+import net.jpountz.xxhash.XXHashFactory;
+
+/**
+ * Random access to a frame which has been written with a seek table by
+ * {@link LZ4FrameOutputStream#LZ4FrameOutputStream(java.io.OutputStream, LZ4FrameOutputStream.BLOCKSIZE, long, LZ4Compressor, XXHash32, boolean, FLG.Bits...)}.
+ * This class is NOT thread safe.
+ * <p>
+ * The seek table gives the offset of every block in the channel and in the
+ * decompressed data, so that a read only reads and decompresses the blocks
+ * which cover the requested range. The last decompressed block is kept so
+ * that sequential reads decompress every block once. Block checksums are
+ * verified, but the content checksum of the frame cannot be.
+ *
+ * @see LZ4FrameInputStream
+ */
+public class LZ4SeekableFrameReader implements Closeable {
+
+  private final SeekableByteChannel channel;
+  private final LZ4SafeDecompressor decompressor;
+  private final XXHash32 checksum;
+  private final boolean blockChecksum;
+  private final int maxBlockSize;
+  private final long[] compressedOffsets; // numBlocks + 1 offsets in the channel
+  private final long[] decompressedOffsets; // numBlocks + 1 offsets in the decompressed data
+  private final byte[] buffer;
+  private int block = -1; // the block which is decompressed at the start of buffer
+
+  /**
+   * Creates a new reader which uses the fastest instances of
+   * {@link LZ4SafeDecompressor} and {@link XXHash32}.
+   *
+   * @param channel the channel to read, which must start with the frame and end with its seek table
+   * @throws IOException if an I/O error occurs or if the seek table is missing or corrupted
+   */
+  public LZ4SeekableFrameReader(SeekableByteChannel channel) throws IOException {
+    this(channel, LZ4Factory.getInstance().safeDecompressor(), XXHashFactory.fastestInstance().hash32());
+  }
+
+  /**
+   * Creates a new reader.
+   *
+   * @param channel the channel to read, which must start with the frame and end with its seek table
+   * @param decompressor the decompressor to use
+   * @param checksum the hash function to use
+   * @throws IOException if an I/O error occurs or if the seek table is missing or corrupted
+   */
+  public LZ4SeekableFrameReader(SeekableByteChannel channel, LZ4SafeDecompressor decompressor, XXHash32 checksum) throws IOException {
+    this.channel = channel;
+    this.decompressor = decompressor;
+    this.checksum = checksum;
+
+    // frame descriptor
+    final ByteBuffer header = ByteBuffer.allocate(LZ4FrameOutputStream.LZ4_MAX_HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+    header.limit(LZ4FrameOutputStream.INTEGER_BYTES + 2);
+    LZ4FrameSeekTable.readFully(channel, header, 0);
+    if (header.getInt(0) != LZ4FrameOutputStream.MAGIC) {
+      throw new IOException(LZ4FrameInputStream.NOT_SUPPORTED);
+    }
+    final FLG flg = FLG.fromByte(header.get(LZ4FrameOutputStream.INTEGER_BYTES));
+    final BD bd = BD.fromByte(header.get(LZ4FrameOutputStream.INTEGER_BYTES + 1));
+    final int headerLen = LZ4FrameOutputStream.INTEGER_BYTES + 2 + (flg.isEnabled(FLG.Bits.CONTENT_SIZE) ? LZ4FrameOutputStream.LONG_BYTES : 0);
+    header.limit(headerLen + 1);
+    LZ4FrameSeekTable.readFully(channel, header, LZ4FrameOutputStream.INTEGER_BYTES + 2);
+    final byte hash = (byte) ((checksum.hash(header.array(), LZ4FrameOutputStream.INTEGER_BYTES, headerLen - LZ4FrameOutputStream.INTEGER_BYTES, 0) >> 8) & 0xFF);
+    if (hash != header.get(headerLen)) {
+      throw new IOException(LZ4FrameInputStream.DESCRIPTOR_HASH_MISMATCH);
+    }
+    if (!flg.isEnabled(FLG.Bits.BLOCK_INDEPENDENCE)) {
+      throw new IOException(LZ4FrameInputStream.NOT_SUPPORTED);
+    }
+    blockChecksum = flg.isEnabled(FLG.Bits.BLOCK_CHECKSUM);
+    maxBlockSize = bd.getBlockMaximumSize();
+
+    // seek table
+    final int[] entries = LZ4FrameSeekTable.read(channel);
+    final int numBlocks = entries.length / 2;
+    compressedOffsets = new long[numBlocks + 1];
+    decompressedOffsets = new long[numBlocks + 1];
+    compressedOffsets[0] = headerLen + 1;
+    for (int i = 0; i < numBlocks; ++i) {
+      final int compressedLen = entries[2 * i];
+      final int decompressedLen = entries[2 * i + 1];
+      if (compressedLen <= 0 || decompressedLen <= 0 || decompressedLen > maxBlockSize) {
+        throw new IOException("Seek table corrupted");
+      }
+      compressedOffsets[i + 1] = compressedOffsets[i] + compressedLen;
+      decompressedOffsets[i + 1] = decompressedOffsets[i] + decompressedLen;
+    }
+    // the end mark, the content checksum and the seek table follow the last block
+    final long frameEnd = compressedOffsets[numBlocks] + LZ4FrameOutputStream.INTEGER_BYTES
+        + (flg.isEnabled(FLG.Bits.CONTENT_CHECKSUM) ? LZ4FrameOutputStream.INTEGER_BYTES : 0);
+    if (frameEnd + LZ4FrameSeekTable.length(numBlocks) != channel.size()) {
+      throw new IOException("Seek table corrupted");
+    }
+    if (flg.isEnabled(FLG.Bits.CONTENT_SIZE) && header.getLong(LZ4FrameOutputStream.INTEGER_BYTES + 2) != decompressedOffsets[numBlocks]) {
+      throw new IOException("Size check mismatch");
+    }
+    // room for the checksum which follows the largest compressed block
+    buffer = new byte[LZ4SafeDecompressor.inPlaceBufferSize(maxBlockSize) + LZ4FrameOutputStream.INTEGER_BYTES];
+  }
+
+  /**
+   * Returns the decompressed length of the frame.
+   *
+   * @return the decompressed length
+   */
+  public long length() {
+    return decompressedOffsets[decompressedOffsets.length - 1];
+  }
+
+  /**
+   * Returns the number of blocks of the frame.
+   *
+   * @return the number of blocks
+   */
+  public int getBlockCount() {
+    return decompressedOffsets.length - 1;
+  }
+
+  /**
+   * Reads up to <code>len</code> bytes of decompressed data, starting at
+   * <code>position</code>, into <code>dest[destOff:destOff+len]</code>.
+   *
+   * @param position the position in the decompressed data
+   * @param dest the destination buffer
+   * @param destOff the start offset in dest
+   * @param len the maximum number of bytes to read
+   * @return the number of bytes read, which is less than <code>len</code>
+   *         only if the end of the data is reached, or -1 if
+   *         <code>position</code> is at or after the end of the data
+   * @throws IOException if an I/O error occurs or if a block is corrupted
+   */
+  public int read(long position, byte[] dest, int destOff, int len) throws IOException {
+    if (position < 0 || destOff < 0 || len < 0 || destOff + len > dest.length) {
+      throw new IndexOutOfBoundsException();
+    }
+    if (position >= length()) {
+      return -1;
+    }
+    int read = 0;
+    while (read < len && position < length()) {
+      final int i = blockAt(position);
+      decompressBlock(i);
+      final int blockOff = (int) (position - decompressedOffsets[i]);
+      final int n = (int) Math.min(len - read, decompressedOffsets[i + 1] - position);
+      System.arraycopy(buffer, blockOff, dest, destOff + read, n);
+      read += n;
+      position += n;
+    }
+    return read;
+  }
+
+  /**
+   * Returns the index of the block which contains <code>position</code>.
+   */
+  private int blockAt(long position) {
+    if (block >= 0 && position >= decompressedOffsets[block] && position < decompressedOffsets[block + 1]) {
+      return block;
+    }
+    final int i = Arrays.binarySearch(decompressedOffsets, position);
+    return i >= 0 ? i : -2 - i;
+  }
+
+  /**
+   * Reads, verifies and decompresses block <code>i</code> at the start of
+   * {@link #buffer}, unless it is already there.
+   */
+  private void decompressBlock(int i) throws IOException {
+    if (block == i) {
+      return;
+    }
+    block = -1;
+    final int recordLen = (int) (compressedOffsets[i + 1] - compressedOffsets[i]);
+    final int decompressedLen = (int) (decompressedOffsets[i + 1] - decompressedOffsets[i]);
+    final int blockSize = recordLen - LZ4FrameOutputStream.INTEGER_BYTES - (blockChecksum ? LZ4FrameOutputStream.INTEGER_BYTES : 0);
+    if (blockSize <= 0 || blockSize > maxBlockSize) {
+      throw new IOException("Seek table corrupted");
+    }
+    // compressed blocks are read at the end of the in-place range of buffer
+    final int inPlaceLen = maxBlockSize + LZ4SafeDecompressor.inPlaceMargin(blockSize);
+    final int recordOff = inPlaceLen - blockSize - LZ4FrameOutputStream.INTEGER_BYTES;
+    final ByteBuffer record = ByteBuffer.wrap(buffer, recordOff, recordLen).order(ByteOrder.LITTLE_ENDIAN);
+    LZ4FrameSeekTable.readFully(channel, record, compressedOffsets[i]);
+
+    int length = record.getInt(recordOff);
+    final boolean compressed = (length & LZ4FrameOutputStream.LZ4_FRAME_INCOMPRESSIBLE_MASK) == 0;
+    length &= ~LZ4FrameOutputStream.LZ4_FRAME_INCOMPRESSIBLE_MASK;
+    if (length != blockSize) {
+      throw new IOException(String.format(Locale.ROOT, "Block size %s does not match the seek table: %s", length, blockSize));
+    }
+    final int blockOff = recordOff + LZ4FrameOutputStream.INTEGER_BYTES;
+    if (blockChecksum && record.getInt(blockOff + blockSize) != checksum.hash(buffer, blockOff, blockSize, 0)) {
+      throw new IOException(LZ4FrameInputStream.BLOCK_HASH_MISMATCH);
+    }
+    try {
+      if (compressed) {
+        if (decompressor.decompressInPlace(buffer, 0, inPlaceLen, blockSize) != decompressedLen) {
+          throw new IOException("Block size does not match the seek table");
+        }
+      } else if (blockSize != decompressedLen) {
+        throw new IOException("Block size does not match the seek table");
+      } else {
+        System.arraycopy(buffer, blockOff, buffer, 0, blockSize);
+      }
+    } catch (LZ4Exception e) {
+      throw new IOException(e);
+    }
+    block = i;
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + "(channel=" + channel + ", decompressor=" + decompressor + ")";
+  }
+
+}
@@ -0,0 +1,177 @@
+package net.jpountz.lz4;
+
+/*
+ * Copyright 2020 Adrien Grand and the lz4-java contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static net.jpountz.lz4.LZ4Constants.MAX_DISTANCE;
+
+import net.jpountz.util.SafeUtils;
+
+/**
+ * Decompresses a sequence of blocks produced by a {@link LZ4StreamEncoder},
+ * where every block may reference the 64 KB of data which precede it,
+ * similarly to liblz4's <code>LZ4_decompress_safe_continue</code>.
+ * <p>
+ * Blocks are decompressed into a buffer of fixed size, right after the
+ * previous ones, and nothing is allocated per block. When the buffer is full,
+ * only the last 64 KB are moved to its start.
+ * <p>
+ * This class is NOT thread-safe.
+ *
+ * @see LZ4StreamEncoder
+ */
+public final class LZ4StreamDecoder {
+
+  private final LZ4SafeDecompressor decompressor;
+  private final int maxBlockSize;
+  private final byte[] buffer;
+  private int pos; // end of the history, which starts at 0
+
+  /**
+   * Creates a new decoder for blocks of at most 64 KB.
+   *
+   * @param decompressor the decompressor to use, typically
+   *                     {@link LZ4Factory#safeDecompressor()}
+   */
+  public LZ4StreamDecoder(LZ4SafeDecompressor decompressor) {
+    this(decompressor, MAX_DISTANCE);
+  }
+
+  /**
+   * Creates a new decoder.
+   *
+   * @param decompressor the decompressor to use, typically
+   *                     {@link LZ4Factory#safeDecompressor()}
+   * @param maxBlockSize the maximum decompressed length of a block, which
+   *                     must be at least the one of the encoder
+   */
+  public LZ4StreamDecoder(LZ4SafeDecompressor decompressor, int maxBlockSize) {
+    if (maxBlockSize <= 0) {
+      throw new IllegalArgumentException("maxBlockSize must be positive, got " + maxBlockSize);
+    }
+    this.decompressor = decompressor;
+    this.maxBlockSize = maxBlockSize;
+    this.buffer = new byte[MAX_DISTANCE + Math.max(maxBlockSize, 3 * MAX_DISTANCE)];
+  }
+
+  /**
+   * Returns the maximum decompressed length of a block.
+   *
+   * @return the maximum decompressed length of a block
+   */
+  public int getMaxBlockSize() {
+    return maxBlockSize;
+  }
+
+  /**
+   * Forgets the history, to be called at the same point as
+   * {@link LZ4StreamEncoder#reset()}.
+   */
+  public void reset() {
+    pos = 0;
+  }
+
+  /**
+   * Returns the buffer which holds decompressed blocks. The last block is at
+   * <code>buffer()[position()-len:position()]</code> where <code>len</code>
+   * is the value returned by {@link #decompress(byte[], int, int)}. Its content
+   * is only valid until the next block is decompressed and must not be
+   * modified.
+   *
+   * @return the buffer of this decoder
+   */
+  public byte[] buffer() {
+    return buffer;
+  }
+
+  /**
+   * Returns the end of the last block in {@link #buffer()}.
+   *
+   * @return the end of the last block
+   */
+  public int position() {
+    return pos;
+  }
+
+  /**
+   * Decompresses <code>src[srcOff:srcOff+srcLen]</code>, whose matches may
+   * reference the blocks decoded since the last {@link #reset()}, into
+   * {@link #buffer()} and returns its decompressed length.
+   *
+   * @param src the compressed data
+   * @param srcOff the start offset in src
+   * @param srcLen the exact size of the compressed data
+   * @return the decompressed length
+   * @throws LZ4Exception if the block is malformed or larger than the maximum
+   *         block size
+   */
+  public int decompress(byte[] src, int srcOff, int srcLen) {
+    ensureCapacity();
+    final int len = decompressor.decompress(src, srcOff, srcLen, buffer, pos, maxBlockSize, buffer, 0, pos);
+    pos += len;
+    return len;
+  }
+
+  /**
+   * Same as {@link #decompress(byte[], int, int)} except that the
+   * decompressed data is also copied into
+   * <code>dest[destOff:destOff+maxDestLen]</code>.
+   *
+   * @param src the compressed data
+   * @param srcOff the start offset in src
+   * @param srcLen the exact size of the compressed data
+   * @param dest the destination buffer to store the decompressed data
+   * @param destOff the start offset in dest
+   * @param maxDestLen the maximum number of bytes to write in dest
+   * @return the decompressed length
+   * @throws LZ4Exception if the block is malformed or maxDestLen is too small,
+   *         the block is then not added to the history
+   */
+  public int decompress(byte[] src, int srcOff, int srcLen, byte[] dest, int destOff, int maxDestLen) {
+    SafeUtils.checkRange(dest, destOff, maxDestLen);
+    ensureCapacity();
+    final int len = decompressor.decompress(src, srcOff, srcLen, buffer, pos, Math.min(maxDestLen, maxBlockSize), buffer, 0, pos);
+    System.arraycopy(buffer, pos, dest, destOff, len);
+    pos += len;
+    return len;
+  }
+
+  /**
+   * Adds a block which has been stored uncompressed to the history.
+   */
+  void append(byte[] src, int srcOff, int srcLen) {
+    if (srcLen > maxBlockSize) {
+      throw new LZ4Exception("Block of " + srcLen + " bytes exceeds the maximum of " + maxBlockSize);
+    }
+    ensureCapacity();
+    System.arraycopy(src, srcOff, buffer, pos, srcLen);
+    pos += srcLen;
+  }
+
+  private void ensureCapacity() {
+    if (pos > buffer.length - maxBlockSize) {
+      final int shift = pos - MAX_DISTANCE;
+      System.arraycopy(buffer, shift, buffer, 0, MAX_DISTANCE);
+      pos = MAX_DISTANCE;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + "[" + decompressor + "]";
+  }
+
+}
@@ -0,0 +1,178 @@
+package net.jpountz.lz4;
+
+/*
+ * Copyright 2020 Adrien Grand and the lz4-java contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static net.jpountz.lz4.LZ4Constants.MAX_DISTANCE;
+
+import net.jpountz.util.SafeUtils;
+
+/**
+ * Compresses a sequence of blocks where every block may reference the 64 KB
+ * of data which precede it, similarly to liblz4's
+ * <code>LZ4_compress_fast_continue</code>. This is typically used to compress
+ * the messages of a protocol: every message is still compressed into its own
+ * raw LZ4 block, but small messages compress much better since they can
+ * reference the previous ones. Blocks must be decompressed in the same order by
+ * a {@link LZ4StreamDecoder}.
+ * <p>
+ * Blocks are copied into a buffer which holds the history followed by the
+ * block being compressed, so callers may reuse their buffers right after
+ * {@link #compress(byte[], int, int, byte[], int, int)} returns. When the
+ * buffer is full, only the last 64 KB of history are moved to its start. Hash
+ * tables are kept in a {@link LZ4CompressorState} and are not cleared between
+ * blocks.
+ * <p>
+ * This class is NOT thread-safe.
+ *
+ * @see LZ4StreamDecoder
+ */
+public final class LZ4StreamEncoder {
+
+  private final LZ4Compressor compressor;
+  private final LZ4CompressorState state;
+  private final int maxBlockSize;
+  private final byte[] buffer;
+  private int pos; // end of the history, which starts at 0
+
+  /**
+   * Creates a new encoder for blocks of at most 64 KB.
+   *
+   * @param compressor the compressor to use, typically
+   *                   {@link LZ4Factory#fastCompressor()}
+   */
+  public LZ4StreamEncoder(LZ4Compressor compressor) {
+    this(compressor, MAX_DISTANCE);
+  }
+
+  /**
+   * Creates a new encoder.
+   *
+   * @param compressor the compressor to use, typically
+   *                   {@link LZ4Factory#fastCompressor()}
+   * @param maxBlockSize the maximum length of a block
+   */
+  public LZ4StreamEncoder(LZ4Compressor compressor, int maxBlockSize) {
+    if (maxBlockSize <= 0) {
+      throw new IllegalArgumentException("maxBlockSize must be positive, got " + maxBlockSize);
+    }
+    this.compressor = compressor;
+    this.state = compressor.newState();
+    this.maxBlockSize = maxBlockSize;
+    // once moved to the start of the buffer, the history is less than 128 KB
+    this.buffer = new byte[2 * MAX_DISTANCE + Math.max(maxBlockSize, 2 * MAX_DISTANCE)];
+    compressor.resetStream(state);
+  }
+
+  /**
+   * Returns the maximum length of a block.
+   *
+   * @return the maximum length of a block
+   */
+  public int getMaxBlockSize() {
+    return maxBlockSize;
+  }
+
+  /**
+   * Returns the maximum compressed length for a block of size
+   * <code>length</code>.
+   *
+   * @param length the block size in bytes
+   * @return the maximum compressed length in bytes
+   */
+  public int maxCompressedLength(int length) {
+    return compressor.maxCompressedLength(length);
+  }
+
+  /**
+   * Forgets the history, the next block is compressed independently. The
+   * decoder must be reset at the same point.
+   */
+  public void reset() {
+    pos = 0;
+    compressor.resetStream(state);
+  }
+
+  /**
+   * Compresses <code>src[srcOff:srcOff+srcLen]</code>, which may reference
+   * the blocks compressed since the last {@link #reset()}, into
+   * <code>dest[destOff:destOff+maxDestLen]</code> and returns the compressed
+   * length.
+   * <p>
+   * If this method throws an exception, the history is forgotten as if
+   * {@link #reset()} had been called, but the decoder does not need to be
+   * reset.
+   *
+   * @param src the source data
+   * @param srcOff the start offset in src
+   * @param srcLen the number of bytes to compress, at most the maximum block size
+   * @param dest the destination buffer
+   * @param destOff the start offset in dest
+   * @param maxDestLen the maximum number of bytes to write in dest
+   * @throws LZ4Exception if maxDestLen is too small
+   * @return the compressed size
+   */
+  public int compress(byte[] src, int srcOff, int srcLen, byte[] dest, int destOff, int maxDestLen) {
+    SafeUtils.checkRange(src, srcOff, srcLen);
+    if (srcLen > maxBlockSize) {
+      throw new IllegalArgumentException("Block of " + srcLen + " bytes exceeds the maximum of " + maxBlockSize);
+    }
+    if (pos > buffer.length - srcLen) {
+      slide();
+    }
+    System.arraycopy(src, srcOff, buffer, pos, srcLen);
+    final int compressedLen;
+    try {
+      compressedLen = compressor.compressLinked(state, buffer, 0, pos, srcLen, dest, destOff, maxDestLen);
+    } catch (LZ4Exception e) {
+      // the hash tables reference a block which the decoder will never see
+      reset();
+      throw e;
+    }
+    pos += srcLen;
+    return compressedLen;
+  }
+
+  /**
+   * Convenience method, equivalent to calling
+   * {@link #compress(byte[], int, int, byte[], int, int) compress(src, srcOff, srcLen, dest, destOff, dest.length - destOff)}.
+   *
+   * @param src the source data
+   * @param srcOff the start offset in src
+   * @param srcLen the number of bytes to compress
+   * @param dest the destination buffer
+   * @param destOff the start offset in dest
+   * @throws LZ4Exception if dest is too small
+   * @return the compressed size
+   */
+  public int compress(byte[] src, int srcOff, int srcLen, byte[] dest, int destOff) {
+    return compress(src, srcOff, srcLen, dest, destOff, dest.length - destOff);
+  }
+
+  private void slide() {
+    // keep offsets congruent modulo 64 KB, which the high compressor relies on
+    final int shift = (pos - MAX_DISTANCE) & -MAX_DISTANCE;
+    System.arraycopy(buffer, shift, buffer, 0, pos - shift);
+    pos -= shift;
+    compressor.slideStream(state, shift);
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + "[" + compressor + "]";
+  }
+
+}
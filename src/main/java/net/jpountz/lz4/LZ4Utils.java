@@ -40,6 +40,28 @@ enum LZ4Utils {
     return length + length / 255 + 16;
   }
 
+  static int inPlaceMargin(int compressedLength) {
+    if (compressedLength < 0) {
+      throw new IllegalArgumentException("compressedLength must be >= 0, got " + compressedLength);
+    }
+    // the output may never catch up with the compressed data that is still to
+    // be read, including the bytes written past the end of wild copies
+    return (compressedLength >>> 8) + 32;
+  }
+
+  /**
+   * Checks the arguments of an in-place decompression and returns the maximum
+   * number of bytes that it may produce.
+   */
+  static int maxInPlaceDestLen(byte[] buf, int off, int len, int compressedLen) {
+    SafeUtils.checkRange(buf, off, len);
+    final int margin = inPlaceMargin(compressedLen);
+    if (compressedLen > len || margin > len) {
+      throw new IllegalArgumentException("len must be >= " + Math.max(compressedLen, margin) + ", got " + len);
+    }
+    return len - margin;
+  }
+
   static int hash(int i) {
     return (i * -1640531535) >>> ((MIN_MATCH * 8) - HASH_LOG);
   }
@@ -48,6 +70,10 @@ enum LZ4Utils {
     return (i * -1640531535) >>> ((MIN_MATCH * 8) - HASH_LOG_64K);
   }
 
+  static int hash(int i, int hashLog) {
+    return (i * -1640531535) >>> ((MIN_MATCH * 8) - hashLog);
+  }
+
   static int hashHC(int i) {
     return (i * -1640531535) >>> ((MIN_MATCH * 8) - HASH_LOG_HC);
   }
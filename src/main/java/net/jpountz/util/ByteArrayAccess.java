@@ -0,0 +1,61 @@
+package net.jpountz.util;
+
+/*
+ * Copyright 2020 Adrien Grand and the lz4-java contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Multi-byte reads and writes on <code>byte[]</code>.
+ * <p>
+ * This is the Java 8 implementation which assembles values byte by byte, Java
+ * 9+ runtimes load the one from <code>META-INF/versions/9</code> instead.
+ */
+enum ByteArrayAccess {
+  ;
+
+  static int readIntBE(byte[] buf, int i) {
+    return ((buf[i] & 0xFF) << 24) | ((buf[i+1] & 0xFF) << 16) | ((buf[i+2] & 0xFF) << 8) | (buf[i+3] & 0xFF);
+  }
+
+  static int readIntLE(byte[] buf, int i) {
+    return (buf[i] & 0xFF) | ((buf[i+1] & 0xFF) << 8) | ((buf[i+2] & 0xFF) << 16) | ((buf[i+3] & 0xFF) << 24);
+  }
+
+  static long readLongLE(byte[] buf, int i) {
+    return (buf[i] & 0xFFL) | ((buf[i+1] & 0xFFL) << 8) | ((buf[i+2] & 0xFFL) << 16) | ((buf[i+3] & 0xFFL) << 24)
+         | ((buf[i+4] & 0xFFL) << 32) | ((buf[i+5] & 0xFFL) << 40) | ((buf[i+6] & 0xFFL) << 48) | ((buf[i+7] & 0xFFL) << 56);
+  }
+
+  static void writeLongLE(byte[] buf, int off, long v) {
+    buf[off++] = (byte) v;
+    buf[off++] = (byte) (v >>> 8);
+    buf[off++] = (byte) (v >>> 16);
+    buf[off++] = (byte) (v >>> 24);
+    buf[off++] = (byte) (v >>> 32);
+    buf[off++] = (byte) (v >>> 40);
+    buf[off++] = (byte) (v >>> 48);
+    buf[off++] = (byte) (v >>> 56);
+  }
+
+  static int readShortLE(byte[] buf, int i) {
+    return (buf[i] & 0xFF) | ((buf[i+1] & 0xFF) << 8);
+  }
+
+  static void writeShortLE(byte[] buf, int off, int v) {
+    buf[off++] = (byte) v;
+    buf[off++] = (byte) (v >>> 8);
+  }
+
+}
@@ -92,8 +92,11 @@ public enum ByteBufferUtils {
   }
 
   public static void writeShortLE(ByteBuffer dest, int off, int i) {
-    dest.put(off, (byte) i);
-    dest.put(off + 1, (byte) (i >>> 8));
+    if (dest.order() == ByteOrder.LITTLE_ENDIAN) {
+      dest.putShort(off, (short) i);
+    } else {
+      dest.putShort(off, Short.reverseBytes((short) i));
+    }
   }
 
   public static void checkNotReadOnly(ByteBuffer buffer) {
@@ -103,6 +106,10 @@ public enum ByteBufferUtils {
   }
 
   public static int readShortLE(ByteBuffer buf, int i) {
-    return (buf.get(i) & 0xFF) | ((buf.get(i+1) & 0xFF) << 8);
+    if (buf.order() == ByteOrder.LITTLE_ENDIAN) {
+      return buf.getShort(i) & 0xFFFF;
+    } else {
+      return Short.reverseBytes(buf.getShort(i)) & 0xFFFF;
+    }
   }
 }
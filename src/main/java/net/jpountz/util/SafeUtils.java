@@ -46,11 +46,11 @@ public enum SafeUtils {
   }
 
   public static int readIntBE(byte[] buf, int i) {
-    return ((buf[i] & 0xFF) << 24) | ((buf[i+1] & 0xFF) << 16) | ((buf[i+2] & 0xFF) << 8) | (buf[i+3] & 0xFF);
+    return ByteArrayAccess.readIntBE(buf, i);
   }
 
   public static int readIntLE(byte[] buf, int i) {
-    return (buf[i] & 0xFF) | ((buf[i+1] & 0xFF) << 8) | ((buf[i+2] & 0xFF) << 16) | ((buf[i+3] & 0xFF) << 24);
+    return ByteArrayAccess.readIntLE(buf, i);
   }
 
   public static int readInt(byte[] buf, int i) {
@@ -62,13 +62,15 @@ public enum SafeUtils {
   }
 
   public static long readLongLE(byte[] buf, int i) {
-    return (buf[i] & 0xFFL) | ((buf[i+1] & 0xFFL) << 8) | ((buf[i+2] & 0xFFL) << 16) | ((buf[i+3] & 0xFFL) << 24)
-         | ((buf[i+4] & 0xFFL) << 32) | ((buf[i+5] & 0xFFL) << 40) | ((buf[i+6] & 0xFFL) << 48) | ((buf[i+7] & 0xFFL) << 56);
+    return ByteArrayAccess.readLongLE(buf, i);
+  }
+
+  public static void writeLongLE(byte[] buf, int off, long v) {
+    ByteArrayAccess.writeLongLE(buf, off, v);
   }
 
   public static void writeShortLE(byte[] buf, int off, int v) {
-    buf[off++] = (byte) v;
-    buf[off++] = (byte) (v >>> 8);
+    ByteArrayAccess.writeShortLE(buf, off, v);
   }
 
   public static void writeInt(int[] buf, int off, int v) {
@@ -88,7 +90,7 @@ public enum SafeUtils {
   }
 
   public static int readShortLE(byte[] buf, int i) {
-    return (buf[i] & 0xFF) | ((buf[i+1] & 0xFF) << 8);
+    return ByteArrayAccess.readShortLE(buf, i);
   }
 
   public static int readShort(short[] buf, int off) {
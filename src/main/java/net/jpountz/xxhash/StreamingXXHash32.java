@@ -2,6 +2,7 @@ package net.jpountz.xxhash;
 
 import java.util.zip.Checksum;
 import java.io.Closeable;
+import java.nio.ByteBuffer;
 
 /*
  * Copyright 2020 Adrien Grand and the lz4-java contributors.
@@ -71,6 +72,16 @@ public abstract class StreamingXXHash32 implements Closeable {
    */
   public abstract void update(byte[] buf, int off, int len);
 
+  /**
+   * Updates the value of the hash with buf[off:off+len]. The position and
+   * limit of buf are not modified.
+   *
+   * @param buf the input data
+   * @param off the start offset in buf
+   * @param len the number of bytes to hash
+   */
+  public abstract void update(ByteBuffer buf, int off, int len);
+
   /**
    * Resets this instance to the state it had right after instantiation. The
    * seed remains unchanged.
@@ -7,6 +7,10 @@ import static net.jpountz.util.SafeUtils.*;
 import static net.jpountz.util.SafeUtils.checkRange;
 import static java.lang.Integer.rotateLeft;
 
+import java.nio.ByteBuffer;
+
+import net.jpountz.util.ByteBufferUtils;
+
 /**
  * Streaming xxhash.
  */
@@ -138,5 +142,94 @@ final class StreamingXXHash32JavaSafe extends AbstractStreamingXXHash32Java {
     }
   }
 
+  @Override
+  public void update(ByteBuffer buf, int off, int len) {
+    if (buf.hasArray()) {
+      update(buf.array(), off + buf.arrayOffset(), len);
+      return;
+    }
+    ByteBufferUtils.checkRange(buf, off, len);
+    buf = ByteBufferUtils.inLittleEndianOrder(buf);
+
+    totalLen += len;
+
+    if (memSize + len < 16) { // fill in tmp buffer
+      copyToMemory(buf, off, memSize, len);
+      memSize += len;
+      return;
+    }
+
+    final int end = off + len;
+
+    if (memSize > 0) { // data left from previous update
+      copyToMemory(buf, off, memSize, 16 - memSize);
+
+      v1 += readIntLE(memory, 0) * PRIME2;
+      v1 = rotateLeft(v1, 13);
+      v1 *= PRIME1;
+
+      v2 += readIntLE(memory, 4) * PRIME2;
+      v2 = rotateLeft(v2, 13);
+      v2 *= PRIME1;
+
+      v3 += readIntLE(memory, 8) * PRIME2;
+      v3 = rotateLeft(v3, 13);
+      v3 *= PRIME1;
+
+      v4 += readIntLE(memory, 12) * PRIME2;
+      v4 = rotateLeft(v4, 13);
+      v4 *= PRIME1;
+
+      off += 16 - memSize;
+      memSize = 0;
+    }
+
+    {
+      final int limit = end - 16;
+      int v1 = this.v1;
+      int v2 = this.v2;
+      int v3 = this.v3;
+      int v4 = this.v4;
+
+      while (off <= limit) {
+        v1 += ByteBufferUtils.readIntLE(buf, off) * PRIME2;
+        v1 = rotateLeft(v1, 13);
+        v1 *= PRIME1;
+        off += 4;
+
+        v2 += ByteBufferUtils.readIntLE(buf, off) * PRIME2;
+        v2 = rotateLeft(v2, 13);
+        v2 *= PRIME1;
+        off += 4;
+
+        v3 += ByteBufferUtils.readIntLE(buf, off) * PRIME2;
+        v3 = rotateLeft(v3, 13);
+        v3 *= PRIME1;
+        off += 4;
+
+        v4 += ByteBufferUtils.readIntLE(buf, off) * PRIME2;
+        v4 = rotateLeft(v4, 13);
+        v4 *= PRIME1;
+        off += 4;
+      }
+
+      this.v1 = v1;
+      this.v2 = v2;
+      this.v3 = v3;
+      this.v4 = v4;
+    }
+
+    if (off < end) {
+      copyToMemory(buf, off, 0, end - off);
+      memSize = end - off;
+    }
+  }
+
+  private void copyToMemory(ByteBuffer buf, int off, int memOff, int len) {
+    for (int i = 0; i < len; ++i) {
+      memory[memOff + i] = ByteBufferUtils.readByte(buf, off + i);
+    }
+  }
+
 }
 
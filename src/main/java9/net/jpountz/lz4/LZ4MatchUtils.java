@@ -0,0 +1,68 @@
+package net.jpountz.lz4;
+
+/*
+ * Copyright 2020 Adrien Grand and the lz4-java contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Arrays;
+
+import net.jpountz.util.SafeUtils;
+
+/**
+ * Byte comparisons used by the match finders on <code>byte[]</code> inputs.
+ * <p>
+ * This is the Java 9+ implementation: {@link Arrays#mismatch} is an intrinsic
+ * which compares many bytes per instruction, and {@link SafeUtils} reads words
+ * through byte array views.
+ */
+enum LZ4MatchUtils {
+  ;
+
+  static boolean readIntEquals(byte[] buf, int i, int j) {
+    return SafeUtils.readInt(buf, i) == SafeUtils.readInt(buf, j);
+  }
+
+  static int commonBytes(byte[] b, int o1, int o2, int limit) {
+    final int len = limit - o2;
+    if (len <= 0) {
+      return 0;
+    }
+    final int mismatch = Arrays.mismatch(b, o1, o1 + len, b, o2, limit);
+    return mismatch < 0 ? len : mismatch;
+  }
+
+  static int commonBytesBackward(byte[] b, int o1, int o2, int l1, int l2) {
+    // compare the 8 bytes which end at o1 and o2, the highest byte of a
+    // little-endian long being the closest to o1
+    int count = 0;
+    int len = Math.min(o1 - l1, o2 - l2);
+    while (len >= 8) {
+      final long diff = SafeUtils.readLongLE(b, o1 - 8) ^ SafeUtils.readLongLE(b, o2 - 8);
+      if (diff != 0) {
+        return count + (Long.numberOfLeadingZeros(diff) >>> 3);
+      }
+      o1 -= 8;
+      o2 -= 8;
+      len -= 8;
+      count += 8;
+    }
+    while (len > 0 && b[--o1] == b[--o2]) {
+      --len;
+      ++count;
+    }
+    return count;
+  }
+
+}
@@ -0,0 +1,62 @@
+package net.jpountz.util;
+
+/*
+ * Copyright 2020 Adrien Grand and the lz4-java contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * Multi-byte reads and writes on <code>byte[]</code>.
+ * <p>
+ * This is the Java 9+ implementation: byte array views compile to single
+ * bounds-checked unaligned loads and stores, without resorting to
+ * <code>sun.misc.Unsafe</code>.
+ */
+enum ByteArrayAccess {
+  ;
+
+  private static final VarHandle INT_BE = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+  private static final VarHandle INT_LE = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+  private static final VarHandle LONG_LE = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+  private static final VarHandle SHORT_LE = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.LITTLE_ENDIAN);
+
+  static int readIntBE(byte[] buf, int i) {
+    return (int) INT_BE.get(buf, i);
+  }
+
+  static int readIntLE(byte[] buf, int i) {
+    return (int) INT_LE.get(buf, i);
+  }
+
+  static long readLongLE(byte[] buf, int i) {
+    return (long) LONG_LE.get(buf, i);
+  }
+
+  static void writeLongLE(byte[] buf, int off, long v) {
+    LONG_LE.set(buf, off, v);
+  }
+
+  static int readShortLE(byte[] buf, int i) {
+    return ((short) SHORT_LE.get(buf, i)) & 0xFFFF;
+  }
+
+  static void writeShortLE(byte[] buf, int off, int v) {
+    SHORT_LE.set(buf, off, (short) v);
+  }
+
+}